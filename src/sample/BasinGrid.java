@@ -0,0 +1,221 @@
+package sample;
+
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ *  Uniform grid of initial points of a discrete map (x, y) -> (f, g),
+ *  every point iterated on its own for up to maxIter steps.
+ *  Cells are numbered the same way as in CellularArea.getCellNumber,
+ *  i.e. row by row from the top left corner.
+ *
+ *  ESCAPE_TIME mode stores the step on which the orbit left the disc
+ *  of escapeRadius (or NOT_ESCAPED). ATTRACTOR mode stores the index
+ *  of the periodic attractor the orbit settled on (see getAttractors()),
+ *  ESCAPED or NON_PERIODIC.
+ *
+ *  The grid is split into tiles processed by a fork-join pool,
+ *  each tile with its own copies of the compiled f and g.
+ */
+public class BasinGrid {
+
+    public enum Mode { ESCAPE_TIME, ATTRACTOR }
+
+    public static final int NOT_ESCAPED = -1;
+    public static final int ESCAPED = -1;
+    public static final int NON_PERIODIC = -2;
+
+    // tiles of at most that many cells are not split further
+    private static final int TILE_CELLS = 4096;
+    // longest cycle recognized as periodic attractor
+    private static final int MAX_PERIOD = 64;
+
+    private final double startX, startY;
+    private final double finishX, finishY;
+    private final int cellsX, cellsY;
+    private final double cellWidth, cellHeight;
+    private final int maxIter;
+    private final double escapeRadius;
+    private final Mode mode;
+
+    private final int[] values;
+    // each attractor is stored as {x, y, period}, x and y of its lexicographically smallest point
+    private final List<double[]> attractors = new CopyOnWriteArrayList<>();
+    private final double periodTolerance;
+    private final double matchTolerance;
+
+
+    public BasinGrid(double startX, double startY,
+                     double finishX, double finishY,
+                     int cellsX, int cellsY,
+                     int maxIter, double escapeRadius, Mode mode) {
+
+        this.startX = startX;
+        this.startY = startY;
+        this.finishX = finishX;
+        this.finishY = finishY;
+        this.cellsX = cellsX;
+        this.cellsY = cellsY;
+        this.cellWidth = (finishX-startX) / cellsX;
+        this.cellHeight = (finishY-startY) / cellsY;
+        this.maxIter = maxIter;
+        this.escapeRadius = escapeRadius;
+        this.mode = mode;
+        this.values = new int[cellsX*cellsY];
+
+        double diag = Math.hypot(finishX-startX, finishY-startY);
+        this.periodTolerance = 1e-7*diag;
+        this.matchTolerance = 1e-4*diag;
+    }
+
+    public int getCellsX() { return cellsX; }
+
+    public int getCellsY() { return cellsY; }
+
+    public Mode getMode() { return mode; }
+
+    public int getMaxIter() { return maxIter; }
+
+    public int getValue(int cell) { return values[cell]; }
+
+    public int[] getValues() { return values; }
+
+    public List<double[]> getAttractors() { return attractors; }
+
+    // centre of the cell, which is also its initial point
+    public double getCellX(int cell) { return startX + (cell % cellsX + 0.5)*cellWidth; }
+
+    public double getCellY(int cell) { return startY + (cellsY - 1 - cell / cellsX + 0.5)*cellHeight; }
+
+    public void compute(CompiledExpression eF, CompiledExpression eG) {
+        ForkJoinPool.commonPool().invoke(new Tile(eF, eG, 0, cellsX*cellsY));
+    }
+
+    // one "x,y,value" line per cell
+    public void writeCsv(PrintWriter printWriter) {
+
+        for (int cell = 0; cell < values.length; cell++) {
+            printWriter.println(getCellX(cell) + "," + getCellY(cell) + "," + values[cell]);
+        }
+    }
+
+    private class Tile extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final CompiledExpression eF, eG;
+        private final int from, to;
+
+        Tile(CompiledExpression eF, CompiledExpression eG, int from, int to) {
+
+            this.eF = eF;
+            this.eG = eG;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+
+            if (to - from > TILE_CELLS) {
+
+                int middle = (from + to) >>> 1;
+                invokeAll(new Tile(eF, eG, from, middle), new Tile(eF, eG, middle, to));
+                return;
+            }
+
+            // expressions are not thread-safe, every tile works on own copies
+            CompiledExpression tileF = eF.copy();
+            CompiledExpression tileG = eG.copy();
+            double[] vars = new double[2];
+
+            for (int cell = from; cell < to; cell++) {
+                values[cell] = iterate(tileF, tileG, vars, getCellX(cell), getCellY(cell));
+            }
+        }
+    }
+
+    private int iterate(CompiledExpression eF, CompiledExpression eG,
+                        double[] vars, double x, double y) {
+
+        double radiusSq = escapeRadius*escapeRadius;
+
+        for (int i = 1; i <= maxIter; i++) {
+
+            vars[0] = x;
+            vars[1] = y;
+            x = eF.evaluate(vars);
+            y = eG.evaluate(vars);
+
+            // NaN fails the comparison as well
+            if (!(x*x + y*y <= radiusSq)) {
+                return mode == Mode.ESCAPE_TIME ? i : ESCAPED;
+            }
+        }
+
+        if (mode == Mode.ESCAPE_TIME) { return NOT_ESCAPED; }
+
+        return classifyCycle(eF, eG, vars, x, y);
+    }
+
+    private int classifyCycle(CompiledExpression eF, CompiledExpression eG,
+                              double[] vars, double x0, double y0) {
+
+        double x = x0, y = y0;
+        double minX = x0, minY = y0;
+
+        for (int period = 1; period <= MAX_PERIOD; period++) {
+
+            vars[0] = x;
+            vars[1] = y;
+            x = eF.evaluate(vars);
+            y = eG.evaluate(vars);
+
+            if (Math.abs(x-x0) <= periodTolerance && Math.abs(y-y0) <= periodTolerance) {
+                return findAttractor(minX, minY, period);
+            }
+
+            if (x < minX || x == minX && y < minY) {
+
+                minX = x;
+                minY = y;
+            }
+        }
+
+        return NON_PERIODIC;
+    }
+
+    private int findAttractor(double x, double y, int period) {
+
+        int index = matchAttractor(x, y, period);
+        if (index >= 0) { return index; }
+
+        synchronized (attractors) {
+
+            // somebody could register it while we were waiting for the lock
+            index = matchAttractor(x, y, period);
+            if (index >= 0) { return index; }
+
+            attractors.add(new double[] {x, y, period});
+            return attractors.size() - 1;
+        }
+    }
+
+    private int matchAttractor(double x, double y, int period) {
+
+        for (int i = 0; i < attractors.size(); i++) {
+
+            double[] known = attractors.get(i);
+
+            if (known[2] == period &&
+                    Math.abs(known[0]-x) <= matchTolerance && Math.abs(known[1]-y) <= matchTolerance) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+}
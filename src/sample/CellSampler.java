@@ -0,0 +1,192 @@
+package sample;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ *  Places sample points into a cell of CellularArea when building
+ *  the symbolic image. Points are produced in unit square coordinates
+ *  (scaled to the cell by the caller):
+ *
+ *  RANDOM   - independent uniform points;
+ *  GRID     - centres of a regular sub-grid of about sqrt(n) x sqrt(n),
+ *             the count is rounded up so that every row is full;
+ *  JITTERED - one uniform point in each stratum of that sub-grid;
+ *  HALTON   - Halton sequence in bases 2 and 3, randomly shifted
+ *             per cell (Cranley-Patterson rotation).
+ *
+ *  All randomness comes from SplittableRandom generators derived
+ *  from one seed, so a run is reproduced by reusing the seed.
+ *  Number of points may differ from level to level of fragmentation.
+ *  An adaptive sampler also scales it to the expected size of the
+ *  cell's image, using the level's count as the upper bound.
+ */
+public class CellSampler {
+
+    public enum Strategy { RANDOM, GRID, JITTERED, HALTON }
+
+    // adaptive sampler puts that many points per expected target cell
+    private static final double SAMPLES_BY_TARGET = 8.0;
+
+    private final Strategy strategy;
+    private final long seed;
+    private final int[] samplesByLevel;
+    // 0 for fixed counts, otherwise the lower bound of adaptive ones
+    private final int minSamples;
+
+
+    /**
+     * @param samplesByLevel points per cell on fragmentation levels 0, 1, ...;
+     *                       the last value holds for all deeper levels
+     */
+    public CellSampler(Strategy strategy, long seed, int... samplesByLevel) {
+
+        if (samplesByLevel.length == 0) {
+            throw new IllegalArgumentException("CellSampler: no sample counts given");
+        }
+
+        for (int samples : samplesByLevel) {
+            if (samples < 1) {
+                throw new IllegalArgumentException("CellSampler: sample count must be 1+");
+            }
+        }
+
+        this.strategy = strategy;
+        this.seed = seed;
+        this.samplesByLevel = samplesByLevel.clone();
+        this.minSamples = 0;
+    }
+
+    private CellSampler(CellSampler fixed, int minSamples) {
+
+        this.strategy = fixed.strategy;
+        this.seed = fixed.seed;
+        this.samplesByLevel = fixed.samplesByLevel;
+        this.minSamples = minSamples;
+    }
+
+    /**
+     *  Same sampler with adaptive counts: a cell gets a few points for
+     *  every cell its image is expected to touch, but no less than
+     *  minSamples and no more than the count of its level.
+     */
+    public CellSampler adaptive(int minSamples) {
+
+        if (minSamples < 1) {
+            throw new IllegalArgumentException("CellSampler: sample count must be 1+");
+        }
+
+        return new CellSampler(this, minSamples);
+    }
+
+    public boolean isAdaptive() { return minSamples > 0; }
+
+    public int getMinSamples() { return minSamples; }
+
+    public Strategy getStrategy() { return strategy; }
+
+    public long getSeed() { return seed; }
+
+    public int getSamples(int level) {
+        return fullGrid(samplesByLevel[Math.min(level, samplesByLevel.length-1)]);
+    }
+
+    /**
+     * @param covered expected number of cells touched by the image of the cell,
+     *                measured in cells of its own level
+     */
+    public int getSamples(int level, double covered) {
+
+        int samples = getSamples(level);
+
+        // NaN or infinite expansion falls back to the upper bound as well
+        if (minSamples == 0 || !(covered * SAMPLES_BY_TARGET < samples)) { return samples; }
+
+        return fullGrid(Math.max(minSamples, (int) Math.ceil(covered * SAMPLES_BY_TARGET)));
+    }
+
+    public int getMaxSamples() {
+        return fullGrid(Arrays.stream(samplesByLevel).max().getAsInt());
+    }
+
+    // n rounded up to cols x rows of the sub-grid, for other strategies n itself;
+    // never exceeds the rounded value of a bigger n
+    private int fullGrid(int n) {
+
+        if (strategy != Strategy.GRID && strategy != Strategy.JITTERED) { return n; }
+
+        int cols = (int) Math.ceil(Math.sqrt(n));
+
+        return cols * ((n + cols - 1) / cols);
+    }
+
+    // root generator of one symbolic image; split() it for each parallel task
+    public SplittableRandom newRandom(int level) {
+        return new SplittableRandom(seed + 0x9E3779B97F4A7C15L*level);
+    }
+
+    /**
+     *  Writes n points of the unit square to us[0..n-1], vs[0..n-1].
+     *  Sub-grids are full for counts given by getSamples; for other
+     *  counts the top row of GRID and JITTERED is partial.
+     */
+    public void fill(int n, SplittableRandom random, double[] us, double[] vs) {
+
+        switch (strategy) {
+
+            case RANDOM:
+
+                for (int i = 0; i < n; i++) {
+
+                    us[i] = random.nextDouble();
+                    vs[i] = random.nextDouble();
+                }
+                break;
+
+            case GRID:
+            case JITTERED:
+
+                int cols = (int) Math.ceil(Math.sqrt(n));
+                int rows = (n + cols - 1) / cols;
+                boolean jitter = strategy == Strategy.JITTERED;
+
+                for (int i = 0; i < n; i++) {
+
+                    us[i] = (i % cols + (jitter ? random.nextDouble() : 0.5)) / cols;
+                    vs[i] = (i / cols + (jitter ? random.nextDouble() : 0.5)) / rows;
+                }
+                break;
+
+            case HALTON:
+
+                double shiftU = random.nextDouble();
+                double shiftV = random.nextDouble();
+
+                for (int i = 0; i < n; i++) {
+
+                    double u = radicalInverse(i+1, 2) + shiftU;
+                    double v = radicalInverse(i+1, 3) + shiftV;
+
+                    us[i] = u >= 1.0 ? u - 1.0 : u;
+                    vs[i] = v >= 1.0 ? v - 1.0 : v;
+                }
+                break;
+        }
+    }
+
+    // digits of i in given base mirrored around the radix point
+    private static double radicalInverse(int i, int base) {
+
+        double result = 0.0;
+        double fraction = 1.0 / base;
+
+        while (i > 0) {
+
+            result += (i % base) * fraction;
+            i /= base;
+            fraction /= base;
+        }
+
+        return result;
+    }
+}
@@ -1,39 +1,92 @@
 package sample;
 
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import javafx.util.Pair;
-import org.mariuszgromada.math.mxparser.Argument;
-import org.mariuszgromada.math.mxparser.Expression;
 import static java.lang.Math.floor;
 import static java.lang.Math.random;
 
+/**
+ *  Rectangular area split into cellsX x cellsY initial cells,
+ *  every active cell is split into 2 x 2 on each regular fragmentation.
+ *
+ *  Only leaf cells are stored, as a flat array sorted by Morton
+ *  (Z-order) key with status and colour in parallel arrays;
+ *  cells are addressed by their index in that array, which stays
+ *  valid until the next fragmentation or compaction. Coordinates
+ *  are derived from the key on demand. Compaction drops discarded
+ *  leaves, so the area may have holes no leaf covers.
+ *
+ *  Key layout: bits 6..57 hold interleaved x and y coordinates of
+ *  the cell's lower left corner on the finest possible grid
+ *  (cellsX*2^maxLevel x cellsY*2^maxLevel), bits 0..5 hold the level.
+ *  Z-order keeps every subtree contiguous, so the leaves sorted by key
+ *  tile the area in the order of their corner codes.
+ *
+ *  Active leaves are always on the current depth, so they are also
+ *  indexed by their position on the uniform grid of that depth:
+ *  point lookups are plain arithmetic plus one hash probe.
+ */
 public class CellularArea {
 
     public enum CellStatus { ACTIVE, DISCARDED }
 
-    private Double startX;
-    private Double startY;
+    // how the image of a cell is found: by mapping sample points
+    // or by interval enclosure, which never misses a link
+    public enum ImageMode { SAMPLING, INTERVAL }
 
-    private Double finishX;
-    private Double finishY;
+    private static final byte ACTIVE = 0;
+    private static final byte DISCARDED = 1;
 
-    private Integer cellsX;
-    private Integer cellsY;
+    private static final int LEVEL_BITS = 6;
+    private static final long LEVEL_MASK = (1L << LEVEL_BITS) - 1;
+    // coordinates on the finest grid must fit this many bits each
+    private static final int COORD_BITS = 26;
 
-    private Double cellWidth;
-    private Double cellHeight;
+    // default number of points mapped from every cell when building symbolic image
+    private static final int SAMPLES_BY_CELL = 100;
+    // symbolic image tiles of at most that many cells are not split further
+    private static final int IMAGE_TILE_CELLS = 256;
 
-    private CellStatus status = CellStatus.ACTIVE;
-    private List<Integer> id;
-    private short colour = 0;
-    private double z;
-    private List<CellularArea> children = new ArrayList<>();
+    private final double startX;
+    private final double startY;
 
+    private final double finishX;
+    private final double finishY;
 
-    public CellularArea(Double startX, Double startY,
-                        Double finishX, Double finishY,
-                        Integer cellsX, Integer cellsY,
-                        List<Integer> id) {
+    private final int cellsX;
+    private final int cellsY;
+
+    // size of initial cells
+    private final double cellWidth;
+    private final double cellHeight;
+
+    private final int maxLevel;
+    private int depth = 0;
+
+    // leaves, sorted by key
+    private int size;
+    private long[] keys;
+    private byte[] statuses;
+    private short[] colours;
+    // allocated on first setZ
+    private double[] zs;
+    // row-major position on the grid of current depth -> leaf of that depth
+    private LongIntHashMap finestIndex;
+
+    private CellSampler sampler = new CellSampler(CellSampler.Strategy.RANDOM,
+                                                  System.nanoTime(), SAMPLES_BY_CELL);
+    private ImageMode imageMode = ImageMode.SAMPLING;
+    // interval mode encloses images of 2^splits x 2^splits sub-boxes of every cell
+    private int intervalSplits = 0;
+    // whether symbolic image records how many samples (or sub-boxes) hit each link
+    private boolean linkCounts = false;
+
+
+    public CellularArea(double startX, double startY,
+                        double finishX, double finishY,
+                        int cellsX, int cellsY) {
 
         this.startX = startX;
         this.startY = startY;
@@ -44,138 +97,237 @@ public class CellularArea {
 
         this.cellWidth  = (this.finishX-this.startX) / this.cellsX;
         this.cellHeight = (this.finishY-this.startY) / this.cellsY;
-        this.id = id;
 
-        // if we really have a fragmentation
-        if (cellsX != 1 || cellsY != 1) { this.initializeChildren(); }
+        int initialBits = 32 - Integer.numberOfLeadingZeros(Math.max(cellsX, cellsY) - 1);
+        this.maxLevel = Math.min(COORD_BITS - initialBits, (int) LEVEL_MASK);
+
+        this.initializeCells();
     }
 
     public CellularArea(Pair<Double, Double> startCoords,
                         Pair<Double, Double> finishCoords,
-                        Pair<Integer, Integer> cellsNumbers,
-                        List<Integer> id) {
+                        Pair<Integer, Integer> cellsNumbers) {
 
-        this.startX = startCoords.getKey();
-        this.startY = startCoords.getValue();
-        this.finishX = finishCoords.getKey();
-        this.finishY = finishCoords.getValue();
-        this.cellsX = cellsNumbers.getKey();
-        this.cellsY = cellsNumbers.getValue();
-
-        this.cellWidth  = (this.finishX-this.startX) / this.cellsX;
-        this.cellHeight = (this.finishY-this.startY) / this.cellsY;
-        this.id = id;
-
-        // if we really have a fragmentation
-        if (this.cellsX != 1 || this.cellsY != 1) { this.initializeChildren(); }
+        this(startCoords.getKey(), startCoords.getValue(),
+                finishCoords.getKey(), finishCoords.getValue(),
+                cellsNumbers.getKey(), cellsNumbers.getValue());
     }
 
-    public Double getStartX() {
+    public double getStartX() {
         return startX;
     }
 
-    public Double getStartY() {
+    public double getStartY() {
         return startY;
     }
 
-    public Double getFinishX() {
+    public double getFinishX() {
         return finishX;
     }
 
-    public Double getFinishY() {
+    public double getFinishY() {
         return finishY;
     }
 
-    public Integer getCellsX() {
+    public int getCellsX() {
         return cellsX;
     }
 
-    // actually, method can be invoked
-    // only when this cell w/o children
-    // TODO make a check OR modify CellularArea.initializeChildren for overwriting 'children' list
-    public void setCellsXY(Integer cellsX, Integer cellsY) {
+    public int getCellsY() {
+        return cellsY;
+    }
+
+    // of initial cells
+    public double getCellWidth() {
+        return cellWidth;
+    }
+
+    public double getCellHeight() {
+        return cellHeight;
+    }
 
-        if (this.cellsX == 1 && this.cellsY == 1 &&
-                (cellsX != 1 || cellsY != 1)) {
+    public CellSampler getSampler() {
+        return sampler;
+    }
 
-            this.cellsX = cellsX;
-            this.cellsY = cellsY;
-            this.cellWidth = (this.finishX - this.startX) / this.cellsX;
-            this.cellHeight  = (this.finishY - this.startY) / this.cellsY;
+    // how points of cells are chosen for symbolic image
+    public void setSampler(CellSampler sampler) {
+        this.sampler = sampler;
+    }
 
-            this.initializeChildren();
-        }
+    public ImageMode getImageMode() {
+        return imageMode;
     }
 
-    public Integer getCellsY() {
-        return cellsY;
+    public void setImageMode(ImageMode imageMode) {
+        this.imageMode = imageMode;
     }
 
-    public Double getCellWidth() {
-        return cellWidth;
+    public int getIntervalSplits() {
+        return intervalSplits;
     }
 
-    public Double getCellHeight() {
-        return cellHeight;
+    // finer sub-boxes give tighter enclosures for more evaluations
+    public void setIntervalSplits(int intervalSplits) {
+        this.intervalSplits = intervalSplits;
     }
 
-    public CellStatus getStatus() {
-        return status;
+    public boolean getLinkCounts() {
+        return linkCounts;
     }
 
-    public void setStatus(CellStatus status) {
-        this.status = status;
+    // counts go to ComponentGraph.getCounts(), at the cost of 4 bytes per link
+    public void setLinkCounts(boolean linkCounts) {
+        this.linkCounts = linkCounts;
     }
 
-    public List<Integer> getId() {
-        return id;
+    // current number of leaf cells, both active and discarded
+    public int size() {
+        return size;
     }
 
-    public short getColour() { return colour; }
+    public int getDepth() {
+        return depth;
+    }
 
-    public void setColour(short colour) { this.colour = colour; }
+    // bytes held by the leaf arrays
+    public long getMemoryFootprint() {
 
-    public double getZ() { return z; }
+        long bytes = (long) keys.length * (Long.BYTES + 1 + Short.BYTES);
+        if (zs != null) { bytes += (long) zs.length * Double.BYTES; }
 
-    public void setZ(double z) { this.z = z; }
+        return bytes;
+    }
+
+    // spreads lower 32 bits of v to even bit positions
+    private static long spreadBits(long v) {
 
-    public List<CellularArea> getChildren() {
-        return children;
+        v &= 0xFFFFFFFFL;
+        v = (v | (v << 16)) & 0x0000FFFF0000FFFFL;
+        v = (v | (v << 8))  & 0x00FF00FF00FF00FFL;
+        v = (v | (v << 4))  & 0x0F0F0F0F0F0F0F0FL;
+        v = (v | (v << 2))  & 0x3333333333333333L;
+        v = (v | (v << 1))  & 0x5555555555555555L;
+
+        return v;
     }
 
-    private boolean checkDotBounds(Double x, Double y) {
+    // inverse of spreadBits, takes even bits of v
+    private static int compactBits(long v) {
 
-        if (x < this.startX || x > this.finishX ||
-            y < this.startY || y > this.finishY)
+        v &= 0x5555555555555555L;
+        v = (v | (v >>> 1))  & 0x3333333333333333L;
+        v = (v | (v >>> 2))  & 0x0F0F0F0F0F0F0F0FL;
+        v = (v | (v >>> 4))  & 0x00FF00FF00FF00FFL;
+        v = (v | (v >>> 8))  & 0x0000FFFF0000FFFFL;
+        v = (v | (v >>> 16)) & 0x00000000FFFFFFFFL;
 
-            return false;
+        return (int) v;
+    }
 
-        return true;
+    // gx, gy are coordinates on the finest grid
+    private static long makeKey(int gx, int gy, int level) {
+        return ((spreadBits(gx) | (spreadBits(gy) << 1)) << LEVEL_BITS) | level;
     }
 
-    private void initializeChildren() {
+    private static int keyLevel(long key) { return (int) (key & LEVEL_MASK); }
 
-        for (int j = 0; j < this.cellsY; j++) {
-            for (int i = 0; i < this.cellsX; i++) {
+    private static int keyX(long key) { return compactBits(key >>> LEVEL_BITS); }
 
-                Double childStartX = this.startX + i*this.cellWidth;
-                Double childStartY = this.startY + (cellsY-j-1)*this.cellHeight;
+    private static int keyY(long key) { return compactBits(key >>> (LEVEL_BITS+1)); }
 
-                Double childFinishX = this.startX + (i+1)*this.cellWidth;
-                Double childFinishY = this.startY + (cellsY-j)*this.cellHeight;
+    private void initializeCells() {
 
-                List<Integer> childId = new ArrayList<>(this.id);
-                childId.add(j*this.cellsX+i);
+        size = cellsX*cellsY;
+        keys = new long[size];
+        statuses = new byte[size];
+        colours = new short[size];
 
-                CellularArea child = new CellularArea(childStartX, childStartY,
-                                                        childFinishX, childFinishY,
-                                                        1, 1, childId);
-                this.children.add(child);
+        int n = 0;
 
-                //System.out.println("Child id " + child.getId().toString() + " bounds X: " + child.startX + " to " + child.finishX);
-                //System.out.println("             bounds Y: " + child.startY + " to " + child.finishY);
+        for (int j = 0; j < cellsY; j++) {
+            for (int i = 0; i < cellsX; i++) {
+                keys[n++] = makeKey(i << maxLevel, j << maxLevel, 0);
             }
         }
+
+        Arrays.sort(keys);
+        buildFinestIndex();
+    }
+
+    private void buildFinestIndex() {
+
+        int count = 0;
+        for (int cell = 0; cell < size; cell++) { if (keyLevel(keys[cell]) == depth) { count++; } }
+
+        finestIndex = new LongIntHashMap(count, -1);
+
+        for (int cell = 0; cell < size; cell++) {
+
+            long key = keys[cell];
+            if (keyLevel(key) == depth) { finestIndex.put(gridPosition(keyX(key), keyY(key)), cell); }
+        }
+    }
+
+    // gx, gy are coordinates on the finest grid
+    private long gridPosition(int gx, int gy) {
+
+        int shift = maxLevel - depth;
+        return (long) (gy >>> shift) * ((long) cellsX << depth) + (gx >>> shift);
+    }
+
+    public long getKey(int cell) { return keys[cell]; }
+
+    public int getLevel(int cell) { return keyLevel(keys[cell]); }
+
+    public double getCellStartX(int cell) {
+        return startX + keyX(keys[cell]) * (cellWidth / (1 << maxLevel));
+    }
+
+    public double getCellStartY(int cell) {
+        return startY + keyY(keys[cell]) * (cellHeight / (1 << maxLevel));
+    }
+
+    public double getCellWidth(int cell) {
+        return cellWidth / (1 << getLevel(cell));
+    }
+
+    public double getCellHeight(int cell) {
+        return cellHeight / (1 << getLevel(cell));
+    }
+
+    public CellStatus getStatus(int cell) {
+        return statuses[cell] == ACTIVE ? CellStatus.ACTIVE : CellStatus.DISCARDED;
+    }
+
+    public boolean isActive(int cell) {
+        return statuses[cell] == ACTIVE;
+    }
+
+    public void setStatus(int cell, CellStatus status) {
+        statuses[cell] = status == CellStatus.ACTIVE ? ACTIVE : DISCARDED;
+    }
+
+    public short getColour(int cell) { return colours[cell]; }
+
+    public void setColour(int cell, short colour) { colours[cell] = colour; }
+
+    public double getZ(int cell) { return zs == null ? 0.0 : zs[cell]; }
+
+    public void setZ(int cell, double z) {
+
+        if (zs == null) { zs = new double[keys.length]; }
+        zs[cell] = z;
+    }
+
+    private boolean checkDotBounds(double x, double y) {
+
+        if (x < this.startX || x > this.finishX ||
+            y < this.startY || y > this.finishY)
+
+            return false;
+
+        return true;
     }
 
     /**
@@ -193,7 +345,7 @@ public class CellularArea {
      *  for specified dot.
      *
      */
-    public Integer getCellNumber(Double x, Double y) {
+    public int getCellNumber(double x, double y) {
 
         if (!checkDotBounds(x, y)) {
 
@@ -201,154 +353,272 @@ public class CellularArea {
             return -1;
         }
 
-        Integer i = (int) floor((x - this.startX) / cellWidth);
-        Integer j = (int) floor((y - this.startY) / cellHeight);
+        int i = Math.min((int) floor((x - this.startX) / cellWidth), cellsX-1);
+        int j = Math.min((int) floor((y - this.startY) / cellHeight), cellsY-1);
 
         return (this.cellsY - 1 - j)*this.cellsX + i;
     }
 
-    public CellularArea getCellById(List<Integer> id) {
+    // id of the cell as used in ComponentGraph, which is its key
+    public long getId(int cell) {
+        return keys[cell];
+    }
 
-        CellularArea parent = this;
+    // returns index of the cell or -1
+    public int getCellById(long id) {
 
-        for (int i = 0; i < id.size(); i++) {
+        int gx = keyX(id), gy = keyY(id);
 
-            if (parent.getChildren().isEmpty()) {
+        if (keyLevel(id) == depth) { return finestIndex.get(gridPosition(gx, gy)); }
 
-                if (i < id.size()-1) {
-                    System.err.println("Warning: CellularArea.getCellById reached end of fragmentation but id is not over");
-                }
+        int cell = findCell(gx, gy);
+        return cell >= 0 && keys[cell] == id ? cell : -1;
+    }
+
+    // leaf containing given point of the finest grid, -1 if there is none
+    private int findCell(int gx, int gy) {
+
+        long target = makeKey(gx, gy, (int) LEVEL_MASK);
+        int low = 0, high = size-1, found = -1;
+
+        // last key not greater than target
+        while (low <= high) {
+
+            int middle = (low + high) >>> 1;
+
+            if (keys[middle] <= target) {
 
-                return parent;
+                found = middle;
+                low = middle + 1;
             }
 
-            parent = parent.getChildren().get(id.get(i));
+            else { high = middle - 1; }
         }
 
-        // TODO remove?
-        return parent;
+        if (found < 0) { return -1; }
+
+        int shift = maxLevel - getLevel(found);
+        long key = keys[found];
+
+        if (keyX(key) >>> shift != gx >>> shift || keyY(key) >>> shift != gy >>> shift) { return -1; }
+
+        return found;
     }
 
     /**
-     * Note: this method returns appropriate CellularArea
+     * Note: this method returns appropriate cell
      * even if that cell is DISCARDED. You should check that
-     * case in the wrapping methods.
+     * case in the wrapping methods. Returns -1 for dots
+     * out of bounds or in cells released by compact().
      */
-    public CellularArea getCellByDot(Double x, Double y) {
+    public int getCellByDot(double x, double y) {
 
-        if (this.getChildren().isEmpty()) {
-            return this;
-        }
+        if (!checkDotBounds(x, y)) { return -1; }
+
+        int gx = finestX(x), gy = finestY(y);
+        int cell = finestIndex.get(gridPosition(gx, gy));
+
+        return cell >= 0 ? cell : findCell(gx, gy);
+    }
+
+    /**
+     *  Active cell containing the dot, or -1 if the dot is out of bounds
+     *  or falls into a discarded cell. Takes constant time.
+     */
+    public int getActiveCellByDot(double x, double y) {
+
+        if (!checkDotBounds(x, y)) { return -1; }
+
+        int cell = finestIndex.get(gridPosition(finestX(x), finestY(y)));
+
+        return cell >= 0 && statuses[cell] == ACTIVE ? cell : -1;
+    }
+
+    // coordinate on the finest grid, the right edge belongs to the last cell
+    private int finestX(double x) {
+
+        long cells = (long) cellsX << maxLevel;
+        return (int) Math.min((long) floor((x - startX) / (finishX - startX) * cells), cells-1);
+    }
+
+    private int finestY(double y) {
 
-        CellularArea child = this.getChildren().get(this.getCellNumber(x, y));
-        return child.getCellByDot(x, y);
+        long cells = (long) cellsY << maxLevel;
+        return (int) Math.min((long) floor((y - startY) / (finishY - startY) * cells), cells-1);
     }
 
     // cg must be root CellularArea
     public void doInitialFragmentation(ComponentGraph cg) {
 
-        for (CellularArea frag: this.children) {
+        for (int cell = 0; cell < size; cell++) {
 
-            ComponentGraph.Node node = cg.createNode(frag.getId());
+            ComponentGraph.Node node = cg.createNode(getId(cell));
             cg.addNode(node);
-            System.out.println("New fragment " + frag.id.toString());
         }
-    }
 
+        System.out.println("Initial fragmentation: " + size + " cells");
+    }
 
+    // splits every active leaf into 2 x 2, discarded leaves stay as they are
     public void doRegularFragmentation(ComponentGraph cg) {
 
-        if (this.children.isEmpty() && this.getStatus() == CellStatus.ACTIVE) {
+        if (depth == maxLevel) {
+
+            System.err.println("doRegularFragmentation: finest level " + maxLevel + " is reached");
+            return;
+        }
+
+        int active = 0;
+        for (int cell = 0; cell < size; cell++) { if (statuses[cell] == ACTIVE) { active++; } }
+
+        int newSize = size + 3*active;
+        long[] newKeys = new long[newSize];
+        byte[] newStatuses = new byte[newSize];
+        short[] newColours = new short[newSize];
+        int n = 0;
+
+        for (int cell = 0; cell < size; cell++) {
+
+            long key = keys[cell];
+
+            if (statuses[cell] != ACTIVE) {
+
+                newKeys[n] = key;
+                newStatuses[n] = statuses[cell];
+                newColours[n] = colours[cell];
+                n++;
+                continue;
+            }
+
+            int level = keyLevel(key) + 1;
+            int half = 1 << (maxLevel - level);
+            int gx = keyX(key), gy = keyY(key);
+
+            // Z-order of quadrants, keeps keys sorted
+            newKeys[n++] = makeKey(gx, gy, level);
+            newKeys[n++] = makeKey(gx + half, gy, level);
+            newKeys[n++] = makeKey(gx, gy + half, level);
+            newKeys[n++] = makeKey(gx + half, gy + half, level);
+        }
 
-            setCellsXY(2, 2);
+        keys = newKeys;
+        statuses = newStatuses;
+        colours = newColours;
+        zs = null;
+        size = newSize;
+        depth++;
+        buildFinestIndex();
 
-            for (CellularArea frag: this.children) {
+        for (int cell = 0; cell < size; cell++) {
 
-                ComponentGraph.Node node = cg.createNode(frag.getId());
+            if (statuses[cell] == ACTIVE) {
+
+                ComponentGraph.Node node = cg.createNode(getId(cell));
                 cg.addNode(node);
-                System.out.println("New fragment " + frag.id.toString());
             }
+        }
 
-            return;
+        System.out.println("Fragmentation level " + depth + ": " + 4*active + " new cells");
+    }
+
+    /**
+     *  Releases discarded leaves, so that memory and every later pass
+     *  over the store are proportional to the active set. As only
+     *  leaves are stored, a fully discarded subtree goes away with them.
+     *  Cell indices change, ids (keys) of active cells stay the same.
+     *
+     * @return bytes reclaimed
+     */
+    public long compact() {
+
+        long footprint = getMemoryFootprint();
+        int n = 0;
+
+        for (int cell = 0; cell < size; cell++) {
+
+            if (statuses[cell] != ACTIVE) { continue; }
+
+            keys[n] = keys[cell];
+            statuses[n] = statuses[cell];
+            colours[n] = colours[cell];
+            if (zs != null) { zs[n] = zs[cell]; }
+            n++;
         }
 
-        // even if we have terminate DISCARDED cell as 'this',
-        // it won't fragment further because of absence of children
-        for (CellularArea each : this.children) { each.doRegularFragmentation(cg); }
+        int released = size - n;
+
+        keys = Arrays.copyOf(keys, n);
+        statuses = Arrays.copyOf(statuses, n);
+        colours = Arrays.copyOf(colours, n);
+        if (zs != null) { zs = Arrays.copyOf(zs, n); }
+        size = n;
+        buildFinestIndex();
+
+        long reclaimed = footprint - getMemoryFootprint();
+        System.out.println("Compaction: " + released + " discarded cells released, " +
+                           reclaimed/1024 + " KB reclaimed");
+
+        return reclaimed;
     }
 
     /**
      *
-     * @param amount how many points it will get
+     * @param amount how many points it will get from each active cell
      * @param generalList modifiable list forming general sequence
      */
-    public void getRandomPoints(Integer amount,
+    public void getRandomPoints(int amount,
                                 List<Pair<Double, Double>> generalList) {
 
-        if (this.children.isEmpty() && this.getStatus() == CellStatus.ACTIVE) {
+        for (int cell = 0; cell < size; cell++) {
+            if (statuses[cell] == ACTIVE) { getRandomPoints(cell, amount, generalList); }
+        }
+    }
 
-            List<Pair<Double, Double>> areaDots = new ArrayList<>();
-            Double areaWidth = this.finishX - this.startX;
-            Double areaHeight = this.finishY - this.startY;
+    // points of the one given cell
+    public void getRandomPoints(int cell,
+                                int amount,
+                                List<Pair<Double, Double>> generalList) {
 
-            for (Integer i = 0; i < amount; i++) {
+        double cellStartX = getCellStartX(cell);
+        double cellStartY = getCellStartY(cell);
+        double areaWidth = getCellWidth(cell);
+        double areaHeight = getCellHeight(cell);
 
-                Double randX = this.startX + random() * areaWidth;
-                Double randY = this.startY + random() * areaHeight;
-                Pair<Double, Double> dot = new Pair<Double, Double>(randX, randY);
+        for (int i = 0; i < amount; i++) {
 
-                areaDots.add(dot);
-            }
+            double randX = cellStartX + random() * areaWidth;
+            double randY = cellStartY + random() * areaHeight;
 
-            generalList.addAll(areaDots);
-            return;
+            generalList.add(new Pair<>(randX, randY));
         }
-
-        for (CellularArea each : this.children) { each.getRandomPoints(amount, generalList); }
     }
 
-    public void getRandomColouredPoints(Integer amount,
+    public void getRandomColouredPoints(int amount,
                                         List<Pair<Double, Double>> generalList,
                                         List<Short> paletteList) {
 
-        if (this.children.isEmpty() && this.getStatus() == CellStatus.ACTIVE) {
+        for (int cell = 0; cell < size; cell++) {
 
-            List<Pair<Double, Double>> areaDots = new ArrayList<>();
-            Double areaWidth = this.finishX - this.startX;
-            Double areaHeight = this.finishY - this.startY;
+            if (statuses[cell] == ACTIVE) {
 
-            for (Integer i = 0; i < amount; i++) {
-
-                Double randX = this.startX + random() * areaWidth;
-                Double randY = this.startY + random() * areaHeight;
-                Pair<Double, Double> dot = new Pair<Double, Double>(randX, randY);
-
-                areaDots.add(dot);
+                getRandomPoints(cell, amount, generalList);
+                paletteList.add(colours[cell]);
             }
-
-            generalList.addAll(areaDots);
-            paletteList.add(this.colour);
-            return;
         }
-
-        for (CellularArea each : this.children) { each.getRandomColouredPoints(amount, generalList, paletteList); }
     }
 
     public void getRandom3dPoints(List<Dot3d> generalList) {
 
-        if (this.children.isEmpty() && this.getStatus() == CellStatus.ACTIVE) {
+        for (int cell = 0; cell < size; cell++) {
 
-            Double areaWidth = this.finishX - this.startX;
-            Double areaHeight = this.finishY - this.startY;
-            Double randX = this.startX + random() * areaWidth;
-            Double randY = this.startY + random() * areaHeight;
-            Dot3d dot = new Dot3d(randX, randY, this.z);
+            if (statuses[cell] == ACTIVE) {
 
-            generalList.add(dot);
-            return;
-        }
+                double randX = getCellStartX(cell) + random() * getCellWidth(cell);
+                double randY = getCellStartY(cell) + random() * getCellHeight(cell);
 
-        for (CellularArea each : this.children) { each.getRandom3dPoints(generalList); }
+                generalList.add(new Dot3d(randX, randY, getZ(cell)));
+            }
+        }
     }
 
     public List<Pair<Double, Double>> getActiveArea(int dotsByCell) {
@@ -376,51 +646,390 @@ public class CellularArea {
         return result;
     }
 
+    /**
+     *  Maps sample points of every cell of cg by (f, g) and links
+     *  the cell to the active cells hit. Points are chosen by the
+     *  sampler. In INTERVAL mode the cell is linked instead to every
+     *  active cell its enclosed image overlaps, unless f or g is
+     *  handled by mXparser fallback. Cells are split into tiles
+     *  processed by the common fork-join pool, each tile with own
+     *  copies of eF and eG and own generator split off in a fixed
+     *  order, so results depend only on the sampler's seed. A tile
+     *  writes rows only of its own nodes, so nothing is locked;
+     *  rows are packed into cg at the end.
+     */
+    public void fillSymbolicImage(ComponentGraph cg,
+                                    CompiledExpression eF,
+                                    CompiledExpression eG) {
+
+        fillSymbolicImage(cg, eF, eG, null);
+    }
+
+    /**
+     *  Same as above after regular fragmentation, with parentGraph being
+     *  the symbolic image of the previous level. In INTERVAL mode the
+     *  enclosed image of a cell lies in that of its parent, so a cell is
+     *  linked only to children of cells its parent was linked to and that
+     *  are still active; cells whose parent has no such links are not
+     *  mapped at all. Sampled images are not restricted: the parent's
+     *  samples miss some of its links, and children would lose them too.
+     */
     public void fillSymbolicImage(ComponentGraph cg,
-                                    Expression eF,
-                                    Expression eG) {
+                                    CompiledExpression eF,
+                                    CompiledExpression eG,
+                                    ComponentGraph parentGraph) {
 
-        Argument xArg = eF.getArgument("x");
-        Argument yArg = eG.getArgument("y");
+        if (depth == 0 || imageMode != ImageMode.INTERVAL || !(eF.isCompiled() && eG.isCompiled())) {
+            parentGraph = null;
+        }
+
+        int[][] rows = new int[cg.getNodeNumber()][];
+        int[][] rowCounts = linkCounts ? new int[rows.length][] : null;
 
-        for (List<Integer> id : cg.getNodes().keySet()) {
+        ForkJoinPool.commonPool().invoke(new ImageTile(cg, eF, eG, parentGraph, sampler.newRandom(depth),
+                                                       rows, rowCounts, 0, rows.length));
+        cg.setLinks(rows, rowCounts);
+    }
 
-            CellularArea cArea = this.getCellById(id);
-            ComponentGraph.Node node = cg.getNodes().get(id);
-            HashSet<ComponentGraph.Node> adjacentNodes = new HashSet<>();
-            List<Pair<Double, Double>> cellDots = new ArrayList<>();
+    private class ImageTile extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final ComponentGraph cg, parentGraph;
+        private final CompiledExpression eF, eG;
+        private final SplittableRandom random;
+        // sorted target positions (and how many samples hit them) by node position
+        private final int[][] rows, rowCounts;
+        private final int from, to;
+
+        // workspace of a leaf tile: evaluators and node positions of current cell's targets
+        private CompiledExpression tileF, tileG;
+        private int[] targets;
+        private int hits;
+        private double[] us, vs, vars, gradF, gradG;
+        private double[] lo, hi, rangeF, rangeG;
+        // sorted positions of parent's targets on the grid of previous depth,
+        // -1 count for no restriction, -2 for not yet collected
+        private long[] candidates;
+        private int candidateCount = -1;
+        private long candidatesParent = -1;
+        // links of the parent are parentTargets[parentFirst..parentLast-1], -1 if it has no node
+        private int parentFirst, parentLast;
+        private int[] parentTargets;
+        private List<ComponentGraph.Node> parentNodes;
+        private boolean parentAlive;
+
+        ImageTile(ComponentGraph cg, CompiledExpression eF, CompiledExpression eG,
+                  ComponentGraph parentGraph, SplittableRandom random,
+                  int[][] rows, int[][] rowCounts, int from, int to) {
+
+            this.cg = cg;
+            this.parentGraph = parentGraph;
+            this.eF = eF;
+            this.eG = eG;
+            this.random = random;
+            this.rows = rows;
+            this.rowCounts = rowCounts;
+            this.from = from;
+            this.to = to;
+        }
 
-            cArea.getRandomPoints(100, cellDots);
+        @Override
+        protected void compute() {
+
+            if (to - from > IMAGE_TILE_CELLS) {
+
+                int middle = (from + to) >>> 1;
+                invokeAll(new ImageTile(cg, eF, eG, parentGraph, random.split(), rows, rowCounts, from, middle),
+                          new ImageTile(cg, eF, eG, parentGraph, random, rows, rowCounts, middle, to));
+                return;
+            }
+
+            tileF = eF.copy();
+            tileG = eG.copy();
+            targets = new int[sampler.getMaxSamples()];
+            us = new double[targets.length];
+            vs = new double[targets.length];
+            vars = new double[2];
+            gradF = new double[2];
+            gradG = new double[2];
+            lo = new double[2];
+            hi = new double[2];
+            rangeF = new double[2];
+            rangeG = new double[2];
+            candidates = new long[16];
+
+            if (parentGraph != null) {
+
+                parentTargets = parentGraph.getTargets();
+                parentNodes = parentGraph.getNodes();
+            }
+
+            List<ComponentGraph.Node> nodes = cg.getNodes();
+            int[] multiplicities = rowCounts == null ? null : new int[targets.length];
+            ImageMode mode = imageMode;
+
+            if (mode == ImageMode.INTERVAL && !(eF.isCompiled() && eG.isCompiled())) {
+                mode = ImageMode.SAMPLING;
+            }
+
+            for (int n = from; n < to; n++) {
+
+                ComponentGraph.Node node = nodes.get(n);
+                int cell = getCellById(node.content);
+
+                hits = 0;
+
+                if (parentGraph != null && !enterParent(cell)) { continue; }
+
+                if (mode == ImageMode.INTERVAL) { encloseImage(cell); }
+                else { sampleImage(cell); }
+
+                // duplicates are adjacent after sorting, unique targets are moved to the front
+                Arrays.sort(targets, 0, hits);
+                if (multiplicities != null && multiplicities.length < targets.length) {
+                    multiplicities = new int[targets.length];
+                }
+
+                int unique = 0;
+
+                for (int i = 0; i < hits; i++) {
+
+                    // one more hit of the previous target, kept or not
+                    if (i > 0 && targets[i] == targets[i-1]) {
+
+                        if (multiplicities != null && unique > 0 && targets[unique-1] == targets[i]) {
+                            multiplicities[unique-1]++;
+                        }
+                        continue;
+                    }
+
+                    if (multiplicities != null) { multiplicities[unique] = 1; }
+                    targets[unique++] = targets[i];
+                }
+
+                rows[n] = Arrays.copyOf(targets, unique);
+                if (rowCounts != null) { rowCounts[n] = Arrays.copyOf(multiplicities, unique); }
+            }
+        }
+
+        // returns false if parent of the cell has no active targets
+        private boolean enterParent(int cell) {
+
+            long key = keys[cell];
+            int level = keyLevel(key);
+            int bit = 1 << (maxLevel - level);
+            long parentKey = makeKey(keyX(key) & ~bit, keyY(key) & ~bit, level-1);
+
+            // siblings are neighbours in node order, so mostly it is already done
+            if (parentKey == candidatesParent) { return parentAlive; }
+
+            int parent = parentGraph.nodeIndex.get(parentKey);
+
+            candidatesParent = parentKey;
+            candidateCount = -1;
+            parentFirst = -1;
+            parentAlive = parent < 0;
+
+            if (parent < 0) { return true; }
+
+            parentFirst = parentGraph.getOffsets()[parent];
+            parentLast = parentGraph.getOffsets()[parent+1];
+
+            // candidates themselves are collected only when someone asks for them
+            candidateCount = -2;
+
+            for (int e = parentFirst; e < parentLast; e++) {
+                if (firstActiveChild(parentNodes.get(parentTargets[e]).content) >= 0) { parentAlive = true; break; }
+            }
+
+            return parentAlive;
+        }
+
+        // leaf of the top left child of a fragmented parent's target, -1 if it is gone
+        private int firstActiveChild(long parentTarget) {
+
+            int shift = maxLevel - depth + 1;
+            long columns = (long) cellsX << depth;
+            int child = finestIndex.get(2*(keyY(parentTarget) >>> shift)*columns +
+                                        2*(keyX(parentTarget) >>> shift));
+
+            return child >= 0 && statuses[child] == ACTIVE ? child : -1;
+        }
 
-            for (Pair<Double, Double> dot : cellDots) {
+        private void collectCandidates() {
 
-                xArg.setArgumentValue(dot.getKey());
-                yArg.setArgumentValue(dot.getValue());
+            int shift = maxLevel - depth + 1;
+            long parentColumns = (long) cellsX << (depth-1);
 
-                Double newX = eF.calculate();
-                Double newY = eG.calculate();
+            candidateCount = 0;
+
+            for (int e = parentFirst; e < parentLast; e++) {
+
+                long target = parentNodes.get(parentTargets[e]).content;
+                if (firstActiveChild(target) < 0) { continue; }
+
+                if (candidateCount == candidates.length) { candidates = Arrays.copyOf(candidates, 2*candidateCount); }
+                candidates[candidateCount++] = (keyY(target) >>> shift)*parentColumns +
+                                               (keyX(target) >>> shift);
+            }
+
+            Arrays.sort(candidates, 0, candidateCount);
+        }
+
+        private void addTarget(int remoteCell) {
+
+            if (hits == targets.length) { targets = Arrays.copyOf(targets, 2*hits); }
+            targets[hits++] = cg.nodeIndex.get(keys[remoteCell]);
+        }
+
+        private void sampleImage(int cell) {
+
+            int samples = sampler.isAdaptive() ? sampler.getSamples(getLevel(cell), expectedCover(cell))
+                                               : sampler.getSamples(getLevel(cell));
+            double cellStartX = getCellStartX(cell);
+            double cellStartY = getCellStartY(cell);
+            double areaWidth = getCellWidth(cell);
+            double areaHeight = getCellHeight(cell);
+
+            sampler.fill(samples, random, us, vs);
+
+            for (int i = 0; i < samples; i++) {
+
+                vars[0] = cellStartX + us[i] * areaWidth;
+                vars[1] = cellStartY + vs[i] * areaHeight;
+
+                double newX = tileF.evaluate(vars);
+                double newY = tileG.evaluate(vars);
 
                 // in this case we do not registrating such link in graph
-                if (!this.checkDotBounds(newX, newY)) { break; }
+                if (!checkDotBounds(newX, newY)) { continue; }
+
+                int gx = finestX(newX), gy = finestY(newY);
+
+                // 'remoteCell' = active cell which contains mapped dot
+                int remoteCell = finestIndex.get(gridPosition(gx, gy));
+
+                if (remoteCell < 0 || statuses[remoteCell] != ACTIVE) { continue; }
+
+                addTarget(remoteCell);
+            }
+        }
+
+        // number of cells of current depth touched by the image of the cell under
+        // the map linearised at its centre: area of the parallelogram plus its extent
+        private double expectedCover(int cell) {
+
+            double width = getCellWidth(cell);
+            double height = getCellHeight(cell);
+
+            vars[0] = getCellStartX(cell) + width/2;
+            vars[1] = getCellStartY(cell) + height/2;
+
+            tileF.evaluateGradient(vars, gradF);
+            tileG.evaluateGradient(vars, gradG);
+
+            double targetWidth = cellWidth / (1L << depth);
+            double targetHeight = cellHeight / (1L << depth);
+
+            // images of the cell's sides, in target cells
+            double ux = gradF[0] * width / targetWidth, uy = gradG[0] * width / targetHeight;
+            double vx = gradF[1] * height / targetWidth, vy = gradG[1] * height / targetHeight;
+
+            return Math.abs(ux*vy - uy*vx) + Math.abs(ux) + Math.abs(vx) + Math.abs(uy) + Math.abs(vy) + 1.0;
+        }
+
+        // every active cell overlapped by interval enclosure of the image of each sub-box
+        private void encloseImage(int cell) {
+
+            int k = 1 << intervalSplits;
+            double cellStartX = getCellStartX(cell);
+            double cellStartY = getCellStartY(cell);
+            double boxWidth = getCellWidth(cell) / k;
+            double boxHeight = getCellHeight(cell) / k;
+
+            for (int sy = 0; sy < k; sy++) {
+                for (int sx = 0; sx < k; sx++) {
+
+                    // widened by an ulp so that rounding can't leave gaps between boxes
+                    lo[0] = Math.nextDown(cellStartX + sx*boxWidth);
+                    hi[0] = Math.nextUp(cellStartX + (sx+1)*boxWidth);
+                    lo[1] = Math.nextDown(cellStartY + sy*boxHeight);
+                    hi[1] = Math.nextUp(cellStartY + (sy+1)*boxHeight);
 
-                // 'remoteCell' = cell which contains mapped dot
-                CellularArea remoteCell = this.getCellByDot(newX, newY);
+                    tileF.evaluateInterval(lo, hi, rangeF);
+                    tileG.evaluateInterval(lo, hi, rangeG);
 
-                if (remoteCell.getStatus() == CellStatus.DISCARDED) { break; }
+                    // NaN fails the comparisons as well
+                    if (!(rangeF[0] <= finishX && rangeF[1] >= startX &&
+                          rangeG[0] <= finishY && rangeG[1] >= startY)) { continue; }
 
-                ComponentGraph.Node remoteNode = cg.getNodes().get(remoteCell.getId());
-                adjacentNodes.add(remoteNode);
+                    addOverlapped(Math.max(rangeF[0], startX), Math.min(rangeF[1], finishX),
+                                  Math.max(rangeG[0], startY), Math.min(rangeG[1], finishY));
+                }
             }
+        }
+
+        private void addOverlapped(double x0, double x1, double y0, double y1) {
+
+            int shift = maxLevel - depth;
+            long columns = (long) cellsX << depth;
+            int i0 = finestX(x0) >>> shift, i1 = finestX(x1) >>> shift;
+            int j0 = finestY(y0) >>> shift, j1 = finestY(y1) >>> shift;
+
+            long boxCells = (long) (i1-i0+1) * (j1-j0+1);
+
+            // image of the cell is inside that of the parent, so for
+            // big boxes it is cheaper to try children of parent's targets
+            if (candidateCount != -1 && boxCells > 4L*(parentLast - parentFirst)) {
+
+                if (candidateCount == -2) { collectCandidates(); }
+                long parentColumns = columns >>> 1;
+
+                for (int c = 0; c < candidateCount; c++) {
+
+                    long pi = candidates[c] % parentColumns, pj = candidates[c] / parentColumns;
+
+                    for (long j = Math.max(2*pj, j0); j <= Math.min(2*pj+1, j1); j++) {
+                        for (long i = Math.max(2*pi, i0); i <= Math.min(2*pi+1, i1); i++) {
+
+                            int remoteCell = finestIndex.get(j*columns + i);
+                            if (remoteCell >= 0 && statuses[remoteCell] == ACTIVE) { addTarget(remoteCell); }
+                        }
+                    }
+                }
+
+                return;
+            }
+
+            // a box wider than the whole store is cheaper to test cell by cell
+            if (boxCells > size) {
+
+                for (int remoteCell = 0; remoteCell < size; remoteCell++) {
 
-            // TODO call addLinkAll()
-            cg.getLinks().get(node).addAll(adjacentNodes);
+                    if (statuses[remoteCell] != ACTIVE) { continue; }
+
+                    int i = keyX(keys[remoteCell]) >>> shift, j = keyY(keys[remoteCell]) >>> shift;
+                    if (i >= i0 && i <= i1 && j >= j0 && j <= j1) { addTarget(remoteCell); }
+                }
+
+                return;
+            }
+
+            for (int j = j0; j <= j1; j++) {
+                for (int i = i0; i <= i1; i++) {
+
+                    int remoteCell = finestIndex.get(j*columns + i);
+                    if (remoteCell >= 0 && statuses[remoteCell] == ACTIVE) { addTarget(remoteCell); }
+                }
+            }
         }
     }
 
     public void markAsDiscarded(Set<ComponentGraph.Node> nodes) {
 
         for (ComponentGraph.Node node : nodes) {
-            this.getCellById(node.content).setStatus(CellStatus.DISCARDED);
+            statuses[this.getCellById(node.content)] = DISCARDED;
         }
     }
 
@@ -433,8 +1042,8 @@ public class CellularArea {
 
         for (Set<ComponentGraph.Node> cluster : cg.getConcentratedNodes()) {
             for (ComponentGraph.Node node : cluster) {
-                if (i > cg.getSccNumber()-1) { this.getCellById(node.content).setStatus(CellStatus.DISCARDED); }
-                else { this.getCellById(node.content).setColour(i); }
+                if (i > cg.getSccNumber()-1) { statuses[this.getCellById(node.content)] = DISCARDED; }
+                else { colours[this.getCellById(node.content)] = i; }
             }
             i++;
         }
@@ -447,42 +1056,27 @@ public class CellularArea {
 
         double[] sumRows = cg.constructWogFlow(iterNum);
 
-        for (ComponentGraph.Node node : cg.getLinks().keySet()) {
+        // in WOG positions are ids
+        List<ComponentGraph.Node> nodes = cg.getNodes();
 
-            CellularArea appropriateCell = this.getCellById(node.content);
-            appropriateCell.setZ(sumRows[node.id]/divisor);
+        for (int v = 0; v < nodes.size(); v++) {
+            this.setZ(this.getCellById(nodes.get(v).content), sumRows[v]/divisor);
         }
     }
 
-    // generally, cg should represent appropriate to this CellularArea graph
+    // generally, cg should represent appropriate to this CellularArea graph;
+    // flows of SCCs are computed concurrently as far as their dense
+    // matrices of doubles fit in memory, each writes altitudes of own cells
     public void setAllAltitudes(ComponentGraph cg,
                                 double divisor,
                                 int iterNum) {
 
-        for (int i = 0; i < cg.getSccNumber(); i++) {
+        if (zs == null) { zs = new double[keys.length]; }
 
-            ComponentGraph scc = new ComponentGraph();
-            Set<ComponentGraph.Node> nodePool = new HashSet<>(cg.getConcentratedNodes().get(i));
-            int id = 0;
+        cg.mapSccGraphs(scc -> {
 
-            for (ComponentGraph.Node node : nodePool) {
-
-                node.id = id++;
-                scc.nodes.put(node.content, node);
-
-                List<ComponentGraph.Node> nodeLinks = new ArrayList<>();
-                scc.links.put(node, nodeLinks);
-
-                for (ComponentGraph.Node ngbr : cg.getLinks().get(node)) {
-                    if (nodePool.contains(ngbr)) {
-                        nodeLinks.add(ngbr);
-                    }
-                }
-            }
-
-            System.out.println("Prepared scc #" + i + " for flow computing");
-            scc.setIsWog(true);
+            System.out.println("Prepared scc of " + scc.getNodeNumber() + " nodes for flow computing");
             setSccAltitudes(scc, divisor, iterNum);
-        }
+        }, Double.BYTES);
     }
 }
@@ -0,0 +1,1261 @@
+package sample;
+
+import java.util.*;
+import org.mariuszgromada.math.mxparser.Argument;
+import org.mariuszgromada.math.mxparser.Expression;
+
+/**
+ *  Expression compiled once into a flat postfix program
+ *  over primitive doubles, e.g. "1 + y - 1.4*x*x" with variables (x, y)
+ *  turns into
+ *
+ *  CONST 1  VAR 1  ADD  CONST 1.4  VAR 0  SQUARE  MUL  SUB
+ *
+ *  Evaluation walks that program with a preallocated stack,
+ *  so it neither allocates nor touches mXparser Argument objects.
+ *  Syntax not covered by the compiler (factorials, logical operators, ...)
+ *  falls back to plain mXparser calculation with the same semantics.
+ *
+ *  Instances are NOT thread-safe because of the stack; use copy()
+ *  to get an independent evaluator sharing the same program.
+ */
+public class CompiledExpression {
+
+    // opcodes with operand (next code element)
+    static final int OP_CONST = 0, OP_VAR = 1;
+    // binary operations
+    static final int OP_ADD = 2, OP_SUB = 3, OP_MUL = 4, OP_DIV = 5, OP_POW = 6,
+                     OP_LOG = 7, OP_MIN = 8, OP_MAX = 9, OP_MOD = 10;
+    // unary operations
+    static final int OP_NEG = 11, OP_SQUARE = 12, OP_CUBE = 13,
+                     OP_SIN = 14, OP_COS = 15, OP_TAN = 16, OP_COT = 17, OP_SEC = 18, OP_CSC = 19,
+                     OP_ASIN = 20, OP_ACOS = 21, OP_ATAN = 22,
+                     OP_SINH = 23, OP_COSH = 24, OP_TANH = 25,
+                     OP_EXP = 26, OP_LN = 27, OP_LOG2 = 28, OP_LOG10 = 29,
+                     OP_SQRT = 30, OP_ABS = 31, OP_SGN = 32, OP_FLOOR = 33, OP_CEIL = 34;
+
+    private static final Map<String, Integer> unaryFunctions = new HashMap<>();
+    private static final Map<String, Integer> binaryFunctions = new HashMap<>();
+    private static final Map<String, Double> constants = new HashMap<>();
+
+    static {
+        unaryFunctions.put("sin", OP_SIN);
+        unaryFunctions.put("cos", OP_COS);
+        unaryFunctions.put("tan", OP_TAN);
+        unaryFunctions.put("tg", OP_TAN);
+        unaryFunctions.put("cot", OP_COT);
+        unaryFunctions.put("ctg", OP_COT);
+        unaryFunctions.put("sec", OP_SEC);
+        unaryFunctions.put("csc", OP_CSC);
+        unaryFunctions.put("cosec", OP_CSC);
+        unaryFunctions.put("asin", OP_ASIN);
+        unaryFunctions.put("arcsin", OP_ASIN);
+        unaryFunctions.put("acos", OP_ACOS);
+        unaryFunctions.put("arccos", OP_ACOS);
+        unaryFunctions.put("atan", OP_ATAN);
+        unaryFunctions.put("arctan", OP_ATAN);
+        unaryFunctions.put("sinh", OP_SINH);
+        unaryFunctions.put("cosh", OP_COSH);
+        unaryFunctions.put("tanh", OP_TANH);
+        unaryFunctions.put("exp", OP_EXP);
+        unaryFunctions.put("ln", OP_LN);
+        unaryFunctions.put("log2", OP_LOG2);
+        unaryFunctions.put("log10", OP_LOG10);
+        unaryFunctions.put("sqrt", OP_SQRT);
+        unaryFunctions.put("abs", OP_ABS);
+        unaryFunctions.put("sgn", OP_SGN);
+        unaryFunctions.put("floor", OP_FLOOR);
+        unaryFunctions.put("ceil", OP_CEIL);
+
+        binaryFunctions.put("log", OP_LOG);
+        binaryFunctions.put("min", OP_MIN);
+        binaryFunctions.put("max", OP_MAX);
+        binaryFunctions.put("mod", OP_MOD);
+
+        constants.put("pi", Math.PI);
+        constants.put("e", Math.E);
+    }
+
+    // shared by all tabs and builds, see ExpressionCache
+    private static final ExpressionCache cache = new ExpressionCache(256);
+
+    private final String text;
+    private final String[] varNames;
+    // null for valid expressions
+    private String syntaxError = null;
+
+    // program data, shared between copies
+    final int[] code;
+    final double[] consts;
+    final int stackSize;
+
+    // per instance workspace
+    private final double[] stack;
+    private double[][] laneStack;
+    private double[] dualStack;
+    private double[] intervalStack;
+
+    // used only when compiler could not handle the text
+    private final Expression fallback;
+    private final Argument[] fallbackArgs;
+
+
+    private CompiledExpression(String text, String[] varNames,
+                               int[] code, double[] consts, int stackSize) {
+
+        this.text = text;
+        this.varNames = varNames;
+        this.code = code;
+        this.consts = consts;
+        this.stackSize = stackSize;
+        this.stack = new double[stackSize];
+
+        if (code == null) {
+
+            this.fallbackArgs = new Argument[varNames.length];
+
+            for (int i = 0; i < varNames.length; i++) {
+                this.fallbackArgs[i] = new Argument(varNames[i], 0.0);
+            }
+
+            this.fallback = new Expression(text, this.fallbackArgs);
+        }
+
+        else {
+
+            this.fallback = null;
+            this.fallbackArgs = null;
+        }
+    }
+
+    /**
+     *  Returns an evaluator for the text; repeated calls with the same
+     *  text and variables reuse the program compiled the first time.
+     *
+     * @param text expression in mXparser syntax
+     * @param varNames variables in the order their values
+     *                 are passed to evaluate()
+     */
+    public static CompiledExpression compile(String text, String... varNames) {
+        return cache.get(text, varNames);
+    }
+
+    /**
+     *  Checks the text without adding it to the cache, so that
+     *  validating every keystroke doesn't evict compiled programs.
+     *
+     * @return null if the text is a valid expression over varNames,
+     *         error description otherwise
+     */
+    public static String validate(String text, String... varNames) {
+
+        CompiledExpression cached = cache.peek(text, varNames);
+
+        return (cached != null ? cached : compileUncached(text, varNames)).syntaxError;
+    }
+
+    static CompiledExpression compileUncached(String text, String... varNames) {
+
+        try {
+
+            Parser parser = new Parser(text, varNames);
+            AstNode root = parser.parse();
+            List<Integer> codeList = new ArrayList<>();
+            List<Double> constList = new ArrayList<>();
+
+            int stackSize = emit(root, codeList, constList);
+            int[] code = new int[codeList.size()];
+            double[] consts = new double[constList.size()];
+
+            for (int i = 0; i < code.length; i++) { code[i] = codeList.get(i); }
+            for (int i = 0; i < consts.length; i++) { consts[i] = constList.get(i); }
+
+            return new CompiledExpression(text, varNames.clone(), code, consts, stackSize);
+        }
+
+        catch (IllegalArgumentException e) {
+
+            CompiledExpression result = new CompiledExpression(text, varNames.clone(), null, null, 0);
+
+            // mXparser decides whether it is an error or just syntax we don't compile,
+            // but our message is much shorter than its parser dump
+            if (!result.fallback.checkSyntax()) {
+                result.syntaxError = e.getMessage();
+            }
+
+            else {
+                System.err.println("Warning: CompiledExpression.compile falls back to mXparser for \"" +
+                        text + "\" (" + e.getMessage() + ")");
+            }
+
+            return result;
+        }
+    }
+
+    // independent evaluator over the same program
+    public CompiledExpression copy() {
+
+        CompiledExpression result = new CompiledExpression(text, varNames, code, consts, stackSize);
+
+        result.syntaxError = this.syntaxError;
+        return result;
+    }
+
+    public String getText() { return text; }
+
+    public String[] getVarNames() { return varNames.clone(); }
+
+    public boolean isCompiled() { return code != null; }
+
+    public String getSyntaxError() { return syntaxError; }
+
+    /**
+     * @param vars values of variables, ordered as varNames given to compile()
+     */
+    public double evaluate(double[] vars) {
+
+        if (code == null) {
+
+            for (int i = 0; i < fallbackArgs.length; i++) {
+                fallbackArgs[i].setArgumentValue(vars[i]);
+            }
+
+            return fallback.calculate();
+        }
+
+        final int[] code = this.code;
+        final double[] stack = this.stack;
+        int sp = -1;
+
+        for (int pc = 0; pc < code.length; pc++) {
+
+            switch (code[pc]) {
+
+                case OP_CONST:  stack[++sp] = consts[code[++pc]]; break;
+                case OP_VAR:    stack[++sp] = vars[code[++pc]]; break;
+
+                case OP_ADD:    sp--; stack[sp] += stack[sp+1]; break;
+                case OP_SUB:    sp--; stack[sp] -= stack[sp+1]; break;
+                case OP_MUL:    sp--; stack[sp] *= stack[sp+1]; break;
+                case OP_DIV:    sp--; stack[sp] /= stack[sp+1]; break;
+                case OP_POW:    sp--; stack[sp] = Math.pow(stack[sp], stack[sp+1]); break;
+                case OP_LOG:    sp--; stack[sp] = Math.log(stack[sp+1]) / Math.log(stack[sp]); break;
+                case OP_MIN:    sp--; stack[sp] = Math.min(stack[sp], stack[sp+1]); break;
+                case OP_MAX:    sp--; stack[sp] = Math.max(stack[sp], stack[sp+1]); break;
+                case OP_MOD:    sp--; stack[sp] %= stack[sp+1]; break;
+
+                case OP_NEG:    stack[sp] = -stack[sp]; break;
+                case OP_SQUARE: stack[sp] *= stack[sp]; break;
+                case OP_CUBE:   stack[sp] *= stack[sp]*stack[sp]; break;
+                case OP_SIN:    stack[sp] = Math.sin(stack[sp]); break;
+                case OP_COS:    stack[sp] = Math.cos(stack[sp]); break;
+                case OP_TAN:    stack[sp] = Math.tan(stack[sp]); break;
+                case OP_COT:    stack[sp] = 1.0 / Math.tan(stack[sp]); break;
+                case OP_SEC:    stack[sp] = 1.0 / Math.cos(stack[sp]); break;
+                case OP_CSC:    stack[sp] = 1.0 / Math.sin(stack[sp]); break;
+                case OP_ASIN:   stack[sp] = Math.asin(stack[sp]); break;
+                case OP_ACOS:   stack[sp] = Math.acos(stack[sp]); break;
+                case OP_ATAN:   stack[sp] = Math.atan(stack[sp]); break;
+                case OP_SINH:   stack[sp] = Math.sinh(stack[sp]); break;
+                case OP_COSH:   stack[sp] = Math.cosh(stack[sp]); break;
+                case OP_TANH:   stack[sp] = Math.tanh(stack[sp]); break;
+                case OP_EXP:    stack[sp] = Math.exp(stack[sp]); break;
+                case OP_LN:     stack[sp] = Math.log(stack[sp]); break;
+                case OP_LOG2:   stack[sp] = Math.log(stack[sp]) / Math.log(2.0); break;
+                case OP_LOG10:  stack[sp] = Math.log10(stack[sp]); break;
+                case OP_SQRT:   stack[sp] = Math.sqrt(stack[sp]); break;
+                case OP_ABS:    stack[sp] = Math.abs(stack[sp]); break;
+                case OP_SGN:    stack[sp] = Math.signum(stack[sp]); break;
+                case OP_FLOOR:  stack[sp] = Math.floor(stack[sp]); break;
+                case OP_CEIL:   stack[sp] = Math.ceil(stack[sp]); break;
+
+                default:
+                    throw new IllegalStateException("CompiledExpression: unknown opcode " + code[pc]);
+            }
+        }
+
+        return stack[0];
+    }
+
+    /**
+     *  Evaluates the program for a batch of points given as
+     *  struct-of-arrays: vars[v][i] is the value of variable v in lane i.
+     *  Every opcode is dispatched once per batch and then applied
+     *  in a plain loop over lanes, which the JIT is free to vectorize.
+     *
+     * @param lanes number of lanes to process
+     * @param out receives results, out[i] for lane i
+     */
+    public void evaluateLanes(double[][] vars, int lanes, double[] out) {
+
+        if (code == null) {
+
+            for (int i = 0; i < lanes; i++) {
+
+                for (int v = 0; v < fallbackArgs.length; v++) {
+                    fallbackArgs[v].setArgumentValue(vars[v][i]);
+                }
+
+                out[i] = fallback.calculate();
+            }
+
+            return;
+        }
+
+        // workspace is (re)allocated only when batch grows
+        if (laneStack == null || laneStack[0].length < lanes) {
+            laneStack = new double[stackSize][lanes];
+        }
+
+        final int[] code = this.code;
+        final double[][] s = this.laneStack;
+        int sp = -1;
+
+        for (int pc = 0; pc < code.length; pc++) {
+
+            int op = code[pc];
+
+            if (op == OP_CONST) {
+
+                Arrays.fill(s[++sp], 0, lanes, consts[code[++pc]]);
+                continue;
+            }
+
+            if (op == OP_VAR) {
+
+                System.arraycopy(vars[code[++pc]], 0, s[++sp], 0, lanes);
+                continue;
+            }
+
+            if (isUnaryOp(op)) {
+
+                double[] a = s[sp];
+
+                switch (op) {
+
+                    case OP_NEG:    for (int i = 0; i < lanes; i++) { a[i] = -a[i]; } break;
+                    case OP_SQUARE: for (int i = 0; i < lanes; i++) { a[i] *= a[i]; } break;
+                    case OP_CUBE:   for (int i = 0; i < lanes; i++) { a[i] *= a[i]*a[i]; } break;
+                    case OP_SIN:    for (int i = 0; i < lanes; i++) { a[i] = Math.sin(a[i]); } break;
+                    case OP_COS:    for (int i = 0; i < lanes; i++) { a[i] = Math.cos(a[i]); } break;
+                    case OP_EXP:    for (int i = 0; i < lanes; i++) { a[i] = Math.exp(a[i]); } break;
+                    case OP_SQRT:   for (int i = 0; i < lanes; i++) { a[i] = Math.sqrt(a[i]); } break;
+                    default:        for (int i = 0; i < lanes; i++) { a[i] = applyUnary(op, a[i]); }
+                }
+
+                continue;
+            }
+
+            sp--;
+            double[] a = s[sp], b = s[sp+1];
+
+            switch (op) {
+
+                case OP_ADD: for (int i = 0; i < lanes; i++) { a[i] += b[i]; } break;
+                case OP_SUB: for (int i = 0; i < lanes; i++) { a[i] -= b[i]; } break;
+                case OP_MUL: for (int i = 0; i < lanes; i++) { a[i] *= b[i]; } break;
+                case OP_DIV: for (int i = 0; i < lanes; i++) { a[i] /= b[i]; } break;
+                default:     for (int i = 0; i < lanes; i++) { a[i] = applyBinary(op, a[i], b[i]); }
+            }
+        }
+
+        System.arraycopy(s[0], 0, out, 0, lanes);
+    }
+
+    /**
+     *  Forward-mode automatic differentiation: every stack slot carries
+     *  the value together with its partial derivatives by all variables
+     *  (a dual number with varNames.length tangent components).
+     *
+     * @param gradient receives df/dvars[i] in gradient[i]
+     * @return value of the expression, same as evaluate(vars)
+     */
+    public double evaluateGradient(double[] vars, double[] gradient) {
+
+        final int n = varNames.length;
+
+        if (code == null) {
+
+            // central differences, mXparser program can't be differentiated
+            double value = evaluate(vars);
+
+            for (int k = 0; k < n; k++) {
+
+                double saved = vars[k];
+                double h = 1e-6 * Math.max(1.0, Math.abs(saved));
+
+                vars[k] = saved + h;
+                double forward = evaluate(vars);
+                vars[k] = saved - h;
+                double backward = evaluate(vars);
+                vars[k] = saved;
+
+                gradient[k] = (forward - backward) / (2*h);
+            }
+
+            return value;
+        }
+
+        // slot i occupies ds[i*w] (value) and ds[i*w+1 .. i*w+n] (partials)
+        final int w = n + 1;
+
+        if (dualStack == null) { dualStack = new double[stackSize*w]; }
+
+        final int[] code = this.code;
+        final double[] ds = this.dualStack;
+        int sp = -1;
+
+        for (int pc = 0; pc < code.length; pc++) {
+
+            int op = code[pc];
+
+            if (op == OP_CONST || op == OP_VAR) {
+
+                int base = (++sp)*w;
+                int operand = code[++pc];
+
+                Arrays.fill(ds, base+1, base+w, 0.0);
+
+                if (op == OP_CONST) { ds[base] = consts[operand]; }
+
+                else {
+
+                    ds[base] = vars[operand];
+                    ds[base+1+operand] = 1.0;
+                }
+
+                continue;
+            }
+
+            if (isUnaryOp(op)) {
+
+                int base = sp*w;
+                double a = ds[base];
+                double value = applyUnary(op, a);
+                double factor = unaryDerivative(op, a, value);
+
+                ds[base] = value;
+                for (int k = 1; k < w; k++) { ds[base+k] *= factor; }
+
+                continue;
+            }
+
+            sp--;
+            int baseA = sp*w, baseB = baseA + w;
+            double a = ds[baseA], b = ds[baseB];
+            double value = applyBinary(op, a, b);
+            // d(value) = pa*da + pb*db
+            double pa, pb;
+
+            switch (op) {
+
+                case OP_ADD: pa = 1.0; pb = 1.0; break;
+                case OP_SUB: pa = 1.0; pb = -1.0; break;
+                case OP_MUL: pa = b; pb = a; break;
+                case OP_DIV: pa = 1.0/b; pb = -a/(b*b); break;
+                case OP_POW: pa = b*Math.pow(a, b-1); pb = (a > 0) ? value*Math.log(a) : 0.0; break;
+                case OP_LOG: pa = -value/(a*Math.log(a)); pb = 1.0/(b*Math.log(a)); break;
+                case OP_MIN: pa = (a <= b) ? 1.0 : 0.0; pb = 1.0 - pa; break;
+                case OP_MAX: pa = (a >= b) ? 1.0 : 0.0; pb = 1.0 - pa; break;
+                case OP_MOD: pa = 1.0; pb = -(long) (a/b); break;
+                default:     throw new IllegalStateException("CompiledExpression: unknown binary opcode " + op);
+            }
+
+            ds[baseA] = value;
+
+            for (int k = 1; k < w; k++) {
+
+                // skipping zero tangents avoids 0*inf in e.g. pow(x, 0.5) at 0
+                double da = ds[baseA+k], db = ds[baseB+k];
+                ds[baseA+k] = (da == 0 ? 0 : pa*da) + (db == 0 ? 0 : pb*db);
+            }
+        }
+
+        System.arraycopy(ds, 1, gradient, 0, n);
+        return ds[0];
+    }
+
+    /**
+     *  Interval extension of the program: for the box
+     *  lo[i] <= vars[i] <= hi[i] writes to range[0], range[1] bounds
+     *  that enclose every value of the expression over the box.
+     *  Every rounded result is widened outwards by the error bound
+     *  java.lang.Math specifies for it: one ulp per rounding for most
+     *  functions, three for sinh, cosh and tanh (allowed 2.5 ulps),
+     *  so the enclosure is rigorous, though maybe wider than necessary.
+     *
+     *  NaN, NaN means the box lies out of the domain; expressions
+     *  handled by mXparser fallback give the whole line.
+     */
+    public void evaluateInterval(double[] lo, double[] hi, double[] range) {
+
+        if (code == null) {
+
+            range[0] = Double.NEGATIVE_INFINITY;
+            range[1] = Double.POSITIVE_INFINITY;
+            return;
+        }
+
+        if (intervalStack == null) { intervalStack = new double[2*stackSize]; }
+
+        final int[] code = this.code;
+        final double[] is = this.intervalStack;
+        int sp = -1;
+
+        // slot i occupies is[2*i] (lower bound) and is[2*i+1] (upper bound)
+        for (int pc = 0; pc < code.length; pc++) {
+
+            int op = code[pc];
+
+            if (op == OP_CONST) {
+
+                sp++;
+                is[2*sp] = is[2*sp+1] = consts[code[++pc]];
+            }
+
+            else if (op == OP_VAR) {
+
+                int v = code[++pc];
+
+                sp++;
+                is[2*sp] = lo[v];
+                is[2*sp+1] = hi[v];
+            }
+
+            else if (isUnaryOp(op)) { intervalUnary(op, is, 2*sp); }
+
+            else {
+
+                sp--;
+                intervalBinary(op, is, 2*sp);
+            }
+        }
+
+        range[0] = is[0];
+        range[1] = is[1];
+    }
+
+    private static final double TWO_PI = 2*Math.PI;
+
+    // writes [lo, hi] widened by given number of ulps to s[b], s[b+1]
+    private static void setOutward(double[] s, int b, double lo, double hi, int ulps) {
+
+        for (int i = 0; i < ulps; i++) {
+
+            lo = Math.nextDown(lo);
+            hi = Math.nextUp(hi);
+        }
+
+        s[b] = lo;
+        s[b+1] = hi;
+    }
+
+    private static void setEntire(double[] s, int b) {
+
+        s[b] = Double.NEGATIVE_INFINITY;
+        s[b+1] = Double.POSITIVE_INFINITY;
+    }
+
+    private static void setEmpty(double[] s, int b) {
+        s[b] = s[b+1] = Double.NaN;
+    }
+
+    // whether [a, c] may contain point + k*period for some integer k, errs towards true
+    private static boolean mayContainPeriodic(double a, double c, double point, double period) {
+
+        double k = Math.ceil((a - point) / period - 1e-9);
+        return point + k*period <= c + 1e-9*(1.0 + Math.abs(c));
+    }
+
+    // sin (shift = PI/2) or cos (shift = 0) of [a, c]
+    private static void intervalTrig(double[] s, int b, double a, double c, double shift) {
+
+        if (c - a >= TWO_PI) {
+
+            s[b] = -1.0;
+            s[b+1] = 1.0;
+            return;
+        }
+
+        boolean sin = shift != 0.0;
+        double fa = sin ? Math.sin(a) : Math.cos(a);
+        double fc = sin ? Math.sin(c) : Math.cos(c);
+
+        double lo = mayContainPeriodic(a, c, shift + Math.PI, TWO_PI) ? -1.0 : Math.nextDown(Math.min(fa, fc));
+        double hi = mayContainPeriodic(a, c, shift, TWO_PI) ? 1.0 : Math.nextUp(Math.max(fa, fc));
+
+        s[b] = Math.max(lo, -1.0);
+        s[b+1] = Math.min(hi, 1.0);
+    }
+
+    // 1/[a, c] with given extra widening
+    private static void intervalReciprocal(double[] s, int b, double a, double c, int ulps) {
+
+        if (a <= 0 && c >= 0) { setEntire(s, b); }
+        else { setOutward(s, b, 1.0/c, 1.0/a, ulps); }
+    }
+
+    // [a, c] / [p, q]
+    private static void intervalDivide(double[] s, int b, double a, double c, double p, double q, int ulps) {
+
+        if (p <= 0 && q >= 0) {
+
+            setEntire(s, b);
+            return;
+        }
+
+        double q1 = a/p, q2 = a/q, q3 = c/p, q4 = c/q;
+        double lo = Math.min(Math.min(q1, q2), Math.min(q3, q4));
+        double hi = Math.max(Math.max(q1, q2), Math.max(q3, q4));
+
+        // inf/inf
+        if (lo != lo || hi != hi) { setEntire(s, b); }
+        else { setOutward(s, b, lo, hi, ulps); }
+    }
+
+    // product of bounds where 0*inf counts as 0
+    private static double boundProduct(double x, double y) {
+        return (x == 0 || y == 0) ? 0.0 : x*y;
+    }
+
+    private static void intervalUnary(int op, double[] s, int b) {
+
+        double a = s[b], c = s[b+1];
+
+        if (a != a || c != c) {
+
+            setEmpty(s, b);
+            return;
+        }
+
+        switch (op) {
+
+            case OP_NEG:
+                s[b] = -c;
+                s[b+1] = -a;
+                break;
+
+            case OP_SQUARE:
+            case OP_ABS:
+            case OP_COSH:
+
+                // even functions, minimal at 0
+                double fa = applyUnary(op, a), fc = applyUnary(op, c);
+                double lo = (a <= 0 && c >= 0) ? applyUnary(op, 0.0) : Math.min(fa, fc);
+                int ulps = op == OP_ABS ? 0 : (op == OP_COSH ? 3 : 1);
+
+                setOutward(s, b, lo, Math.max(fa, fc), ulps);
+                break;
+
+            case OP_CUBE:   setOutward(s, b, a*a*a, c*c*c, 2); break;
+            case OP_SIN:    intervalTrig(s, b, a, c, Math.PI/2); break;
+            case OP_COS:    intervalTrig(s, b, a, c, 0.0); break;
+
+            case OP_TAN:
+
+                if (c - a >= Math.PI || mayContainPeriodic(a, c, Math.PI/2, Math.PI)) { setEntire(s, b); }
+                else { setOutward(s, b, Math.tan(a), Math.tan(c), 1); }
+                break;
+
+            case OP_COT:
+
+                if (c - a >= Math.PI || mayContainPeriodic(a, c, 0.0, Math.PI)) { setEntire(s, b); }
+                else { setOutward(s, b, 1.0/Math.tan(c), 1.0/Math.tan(a), 2); }
+                break;
+
+            case OP_SEC:
+            case OP_CSC:
+
+                intervalTrig(s, b, a, c, op == OP_CSC ? Math.PI/2 : 0.0);
+                intervalReciprocal(s, b, s[b], s[b+1], 1);
+                break;
+
+            case OP_ASIN:
+            case OP_ACOS:
+
+                a = Math.max(a, -1.0);
+                c = Math.min(c, 1.0);
+
+                if (a > c) { setEmpty(s, b); }
+                else if (op == OP_ASIN) { setOutward(s, b, Math.asin(a), Math.asin(c), 1); }
+                else { setOutward(s, b, Math.acos(c), Math.acos(a), 1); }
+                break;
+
+            case OP_LN:
+            case OP_LOG2:
+            case OP_LOG10:
+            case OP_SQRT:
+
+                if (c < 0) {
+
+                    setEmpty(s, b);
+                    break;
+                }
+
+                a = Math.max(a, 0.0);
+                setOutward(s, b, applyUnary(op, a), applyUnary(op, c), op == OP_LOG2 ? 2 : 1);
+                break;
+
+            case OP_ATAN:
+            case OP_EXP:
+                setOutward(s, b, applyUnary(op, a), applyUnary(op, c), 1);
+                break;
+
+            // java.lang.Math allows 2.5 ulps here
+            case OP_SINH:
+            case OP_TANH:
+                setOutward(s, b, applyUnary(op, a), applyUnary(op, c), 3);
+                break;
+
+            // monotonic with exact results
+            case OP_SGN:
+            case OP_FLOOR:
+            case OP_CEIL:
+                s[b] = applyUnary(op, a);
+                s[b+1] = applyUnary(op, c);
+                break;
+
+            default:
+                throw new IllegalStateException("CompiledExpression: unknown unary opcode " + op);
+        }
+    }
+
+    private static void intervalBinary(int op, double[] s, int b) {
+
+        double a = s[b], c = s[b+1], p = s[b+2], q = s[b+3];
+
+        if (a != a || c != c || p != p || q != q) {
+
+            setEmpty(s, b);
+            return;
+        }
+
+        switch (op) {
+
+            case OP_ADD: setOutward(s, b, a + p, c + q, 1); break;
+            case OP_SUB: setOutward(s, b, a - q, c - p, 1); break;
+
+            case OP_MUL:
+
+                double m1 = boundProduct(a, p), m2 = boundProduct(a, q);
+                double m3 = boundProduct(c, p), m4 = boundProduct(c, q);
+
+                setOutward(s, b, Math.min(Math.min(m1, m2), Math.min(m3, m4)),
+                                 Math.max(Math.max(m1, m2), Math.max(m3, m4)), 1);
+                break;
+
+            case OP_DIV: intervalDivide(s, b, a, c, p, q, 1); break;
+            case OP_POW: intervalPower(s, b, a, c, p, q); break;
+
+            case OP_LOG:
+
+                // log of [p, q] to the base [a, c] = ln[p, q] / ln[a, c]
+                intervalUnary(OP_LN, s, b);
+                intervalUnary(OP_LN, s, b+2);
+
+                if (s[b] != s[b] || s[b+2] != s[b+2]) { setEmpty(s, b); }
+                else { intervalDivide(s, b, s[b+2], s[b+3], s[b], s[b+1], 1); }
+                break;
+
+            case OP_MIN:
+                s[b] = Math.min(a, p);
+                s[b+1] = Math.min(c, q);
+                break;
+
+            case OP_MAX:
+                s[b] = Math.max(a, p);
+                s[b+1] = Math.max(c, q);
+                break;
+
+            case OP_MOD:
+
+                // remainder has the sign of dividend and is smaller than divisor by magnitude
+                double m = Math.max(Math.abs(p), Math.abs(q));
+
+                s[b] = a >= 0 ? 0.0 : Math.max(a, -m);
+                s[b+1] = c <= 0 ? 0.0 : Math.min(c, m);
+                break;
+
+            default:
+                throw new IllegalStateException("CompiledExpression: unknown binary opcode " + op);
+        }
+    }
+
+    // [a, c]^[p, q]
+    private static void intervalPower(double[] s, int b, double a, double c, double p, double q) {
+
+        if (p == q && p == Math.rint(p) && Math.abs(p) <= (1 << 30)) {
+
+            long n = (long) p;
+
+            if (n == 0) {
+
+                s[b] = s[b+1] = 1.0;
+                return;
+            }
+
+            long absN = Math.abs(n);
+            double fa = Math.pow(a, absN), fc = Math.pow(c, absN);
+            double lo, hi;
+
+            if (absN % 2 == 1) {
+
+                lo = fa;
+                hi = fc;
+            }
+
+            else {
+
+                lo = (a <= 0 && c >= 0) ? 0.0 : Math.min(fa, fc);
+                hi = Math.max(fa, fc);
+            }
+
+            if (n > 0) { setOutward(s, b, lo, hi, 1); }
+            else { intervalReciprocal(s, b, Math.nextDown(lo), Math.nextUp(hi), 1); }
+
+            return;
+        }
+
+        // real powers are defined for non-negative base only
+        if (c < 0) {
+
+            setEmpty(s, b);
+            return;
+        }
+
+        a = Math.max(a, 0.0);
+
+        // monotonic in each argument, so extremes are in the corners
+        double w1 = Math.pow(a, p), w2 = Math.pow(a, q);
+        double w3 = Math.pow(c, p), w4 = Math.pow(c, q);
+        double lo = Math.min(Math.min(w1, w2), Math.min(w3, w4));
+        double hi = Math.max(Math.max(w1, w2), Math.max(w3, w4));
+
+        if (lo != lo || hi != hi) { setEntire(s, b); }
+        else { setOutward(s, b, lo, hi, 1); }
+    }
+
+    // derivative of unary operation at a, value = applyUnary(op, a)
+    static double unaryDerivative(int op, double a, double value) {
+
+        switch (op) {
+
+            case OP_NEG:    return -1.0;
+            case OP_SQUARE: return 2*a;
+            case OP_CUBE:   return 3*a*a;
+            case OP_SIN:    return Math.cos(a);
+            case OP_COS:    return -Math.sin(a);
+            case OP_TAN:    return 1.0 + value*value;
+            case OP_COT:    return -(1.0 + value*value);
+            case OP_SEC:    return value*Math.tan(a);
+            case OP_CSC:    return -value/Math.tan(a);
+            case OP_ASIN:   return 1.0 / Math.sqrt(1 - a*a);
+            case OP_ACOS:   return -1.0 / Math.sqrt(1 - a*a);
+            case OP_ATAN:   return 1.0 / (1 + a*a);
+            case OP_SINH:   return Math.cosh(a);
+            case OP_COSH:   return Math.sinh(a);
+            case OP_TANH:   return 1.0 - value*value;
+            case OP_EXP:    return value;
+            case OP_LN:     return 1.0 / a;
+            case OP_LOG2:   return 1.0 / (a*Math.log(2.0));
+            case OP_LOG10:  return 1.0 / (a*Math.log(10.0));
+            case OP_SQRT:   return 0.5 / value;
+            case OP_ABS:    return Math.signum(a);
+            case OP_SGN:
+            case OP_FLOOR:
+            case OP_CEIL:   return 0.0;
+            default:        throw new IllegalStateException("CompiledExpression: unknown unary opcode " + op);
+        }
+    }
+
+    static boolean isUnaryOp(int op) { return op >= OP_NEG; }
+
+    static double applyUnary(int op, double a) {
+
+        switch (op) {
+
+            case OP_NEG:    return -a;
+            case OP_SQUARE: return a*a;
+            case OP_CUBE:   return a*a*a;
+            case OP_SIN:    return Math.sin(a);
+            case OP_COS:    return Math.cos(a);
+            case OP_TAN:    return Math.tan(a);
+            case OP_COT:    return 1.0 / Math.tan(a);
+            case OP_SEC:    return 1.0 / Math.cos(a);
+            case OP_CSC:    return 1.0 / Math.sin(a);
+            case OP_ASIN:   return Math.asin(a);
+            case OP_ACOS:   return Math.acos(a);
+            case OP_ATAN:   return Math.atan(a);
+            case OP_SINH:   return Math.sinh(a);
+            case OP_COSH:   return Math.cosh(a);
+            case OP_TANH:   return Math.tanh(a);
+            case OP_EXP:    return Math.exp(a);
+            case OP_LN:     return Math.log(a);
+            case OP_LOG2:   return Math.log(a) / Math.log(2.0);
+            case OP_LOG10:  return Math.log10(a);
+            case OP_SQRT:   return Math.sqrt(a);
+            case OP_ABS:    return Math.abs(a);
+            case OP_SGN:    return Math.signum(a);
+            case OP_FLOOR:  return Math.floor(a);
+            case OP_CEIL:   return Math.ceil(a);
+            default:        throw new IllegalStateException("CompiledExpression: unknown unary opcode " + op);
+        }
+    }
+
+    static double applyBinary(int op, double a, double b) {
+
+        switch (op) {
+
+            case OP_ADD: return a + b;
+            case OP_SUB: return a - b;
+            case OP_MUL: return a * b;
+            case OP_DIV: return a / b;
+            case OP_POW: return Math.pow(a, b);
+            case OP_LOG: return Math.log(b) / Math.log(a);
+            case OP_MIN: return Math.min(a, b);
+            case OP_MAX: return Math.max(a, b);
+            case OP_MOD: return a % b;
+            default:     throw new IllegalStateException("CompiledExpression: unknown binary opcode " + op);
+        }
+    }
+
+    // returns stack depth needed for the subtree
+    private static int emit(AstNode node, List<Integer> code, List<Double> consts) {
+
+        if (node.op == OP_CONST) {
+
+            code.add(OP_CONST);
+            code.add(consts.size());
+            consts.add(node.value);
+            return 1;
+        }
+
+        if (node.op == OP_VAR) {
+
+            code.add(OP_VAR);
+            code.add(node.varIndex);
+            return 1;
+        }
+
+        if (isUnaryOp(node.op)) {
+
+            int depth = emit(node.left, code, consts);
+            code.add(node.op);
+            return depth;
+        }
+
+        int leftDepth = emit(node.left, code, consts);
+        int rightDepth = emit(node.right, code, consts);
+        code.add(node.op);
+
+        return Math.max(leftDepth, rightDepth + 1);
+    }
+
+
+    private static class AstNode {
+
+        int op;
+        double value;
+        int varIndex;
+        AstNode left, right;
+
+        static AstNode constant(double value) {
+
+            AstNode node = new AstNode();
+            node.op = OP_CONST;
+            node.value = value;
+            return node;
+        }
+
+        static AstNode variable(int varIndex) {
+
+            AstNode node = new AstNode();
+            node.op = OP_VAR;
+            node.varIndex = varIndex;
+            return node;
+        }
+
+        static boolean sameTree(AstNode a, AstNode b) {
+
+            if (a == b) { return true; }
+            if (a == null || b == null || a.op != b.op) { return false; }
+
+            if (a.op == OP_CONST) { return Double.compare(a.value, b.value) == 0; }
+            if (a.op == OP_VAR) { return a.varIndex == b.varIndex; }
+
+            return sameTree(a.left, b.left) && sameTree(a.right, b.right);
+        }
+
+        // folds constant subtrees and specializes small integer powers
+        static AstNode unary(int op, AstNode arg) {
+
+            if (arg.op == OP_CONST) { return constant(applyUnary(op, arg.value)); }
+
+            AstNode node = new AstNode();
+            node.op = op;
+            node.left = arg;
+            return node;
+        }
+
+        static AstNode binary(int op, AstNode left, AstNode right) {
+
+            if (left.op == OP_CONST && right.op == OP_CONST) {
+                return constant(applyBinary(op, left.value, right.value));
+            }
+
+            if (op == OP_POW && right.op == OP_CONST) {
+
+                if (right.value == 1.0) { return left; }
+                if (right.value == 2.0) { return unary(OP_SQUARE, left); }
+                if (right.value == 3.0) { return unary(OP_CUBE, left); }
+                if (right.value == 0.5) { return unary(OP_SQRT, left); }
+            }
+
+            // u*u and c*u*u become squares, which is cheaper and gives
+            // tight interval enclosures (u*u over [-1, 1] would be [-1, 1])
+            if (op == OP_MUL) {
+
+                if (sameTree(left, right)) { return unary(OP_SQUARE, left); }
+
+                if (left.op == OP_MUL && left.left.op == OP_CONST && sameTree(left.right, right)) {
+                    return binary(OP_MUL, left.left, unary(OP_SQUARE, right));
+                }
+            }
+
+            AstNode node = new AstNode();
+            node.op = op;
+            node.left = left;
+            node.right = right;
+            return node;
+        }
+    }
+
+    /**
+     *  Recursive descent parser for the mXparser-compatible subset:
+     *
+     *  expr    := term (('+'|'-') term)*
+     *  term    := unary (('*'|'/') unary)*
+     *  unary   := ('+'|'-') unary | power
+     *  power   := (primary | '-'number) ('^' unary)?
+     *  primary := number | constant | variable | function '(' args ')' | '(' expr ')'
+     *
+     *  so that "-x^2" means -(x^2) and '^' is right associative, as in mXparser.
+     *  Like mXparser, a '-' written right before a digit (not after ',') is part
+     *  of the literal: "-2^2" is 4, "x^-2^2" is x^4, while "- 2^2" is -4.
+     *  A sign right after binary '+' or '-' ("1+-2") is rejected, mXparser
+     *  reports it as a syntax error too.
+     */
+    private static class Parser {
+
+        private final String src;
+        private final String[] varNames;
+        private int pos = 0;
+
+        Parser(String src, String[] varNames) {
+
+            this.src = src;
+            this.varNames = varNames;
+        }
+
+        AstNode parse() {
+
+            AstNode result = parseExpr();
+            skipSpaces();
+
+            if (pos != src.length()) {
+                throw new IllegalArgumentException("unexpected '" + src.charAt(pos) + "' at " + pos);
+            }
+
+            return result;
+        }
+
+        private void skipSpaces() {
+            while (pos < src.length() && Character.isWhitespace(src.charAt(pos))) { pos++; }
+        }
+
+        private boolean accept(char c) {
+
+            skipSpaces();
+
+            if (pos < src.length() && src.charAt(pos) == c) {
+
+                pos++;
+                return true;
+            }
+
+            return false;
+        }
+
+        private void expect(char c) {
+            if (!accept(c)) { throw new IllegalArgumentException("'" + c + "' expected at " + pos); }
+        }
+
+        private AstNode parseExpr() {
+
+            AstNode result = parseTerm();
+
+            while (true) {
+
+                if (accept('+'))      { result = AstNode.binary(OP_ADD, result, parseSignlessTerm()); }
+                else if (accept('-')) { result = AstNode.binary(OP_SUB, result, parseSignlessTerm()); }
+                else return result;
+            }
+        }
+
+        private AstNode parseSignlessTerm() {
+
+            skipSpaces();
+
+            if (pos < src.length() && (src.charAt(pos) == '+' || src.charAt(pos) == '-')) {
+                throw new IllegalArgumentException("unexpected '" + src.charAt(pos) + "' at " + pos);
+            }
+
+            return parseTerm();
+        }
+
+        private AstNode parseTerm() {
+
+            AstNode result = parseUnary();
+
+            while (true) {
+
+                if (accept('*'))      { result = AstNode.binary(OP_MUL, result, parseUnary()); }
+                else if (accept('/')) { result = AstNode.binary(OP_DIV, result, parseUnary()); }
+                else return result;
+            }
+        }
+
+        private AstNode parseUnary() {
+
+            if (isNegativeLiteral()) {
+
+                pos++;
+                return parsePower(AstNode.constant(-parseNumber()));
+            }
+
+            if (accept('-')) { return AstNode.unary(OP_NEG, parseUnary()); }
+            if (accept('+')) { return parseUnary(); }
+
+            return parsePower(parsePrimary());
+        }
+
+        // '-' glued to a digit, but not a function argument after ','
+        private boolean isNegativeLiteral() {
+
+            skipSpaces();
+
+            if (pos + 1 >= src.length() || src.charAt(pos) != '-') { return false; }
+
+            char next = src.charAt(pos + 1);
+            if (!Character.isDigit(next) && next != '.') { return false; }
+
+            int prev = pos - 1;
+            while (prev >= 0 && Character.isWhitespace(src.charAt(prev))) { prev--; }
+
+            return prev < 0 || src.charAt(prev) != ',';
+        }
+
+        private AstNode parsePower(AstNode base) {
+
+            if (accept('^')) { return AstNode.binary(OP_POW, base, parseUnary()); }
+
+            return base;
+        }
+
+        private AstNode parsePrimary() {
+
+            skipSpaces();
+
+            if (pos >= src.length()) { throw new IllegalArgumentException("unexpected end of expression"); }
+
+            char c = src.charAt(pos);
+
+            if (accept('(')) {
+
+                AstNode inner = parseExpr();
+                expect(')');
+                return inner;
+            }
+
+            if (Character.isDigit(c) || c == '.') { return AstNode.constant(parseNumber()); }
+
+            if (Character.isLetter(c) || c == '_') {
+
+                int start = pos;
+
+                while (pos < src.length() &&
+                        (Character.isLetterOrDigit(src.charAt(pos)) || src.charAt(pos) == '_')) {
+                    pos++;
+                }
+
+                String name = src.substring(start, pos);
+
+                for (int i = 0; i < varNames.length; i++) {
+                    if (varNames[i].equals(name)) { return AstNode.variable(i); }
+                }
+
+                if (accept('(')) {
+
+                    AstNode first = parseExpr();
+
+                    if (accept(',')) {
+
+                        AstNode second = parseExpr();
+                        expect(')');
+
+                        Integer op = binaryFunctions.get(name);
+                        if (op == null) { throw new IllegalArgumentException("unsupported function " + name); }
+
+                        return AstNode.binary(op, first, second);
+                    }
+
+                    expect(')');
+
+                    Integer op = unaryFunctions.get(name);
+                    if (op == null) { throw new IllegalArgumentException("unsupported function " + name); }
+
+                    return AstNode.unary(op, first);
+                }
+
+                Double constant = constants.get(name);
+                if (constant == null) { throw new IllegalArgumentException("unknown name " + name); }
+
+                return AstNode.constant(constant);
+            }
+
+            throw new IllegalArgumentException("unexpected '" + c + "' at " + pos);
+        }
+
+        private double parseNumber() {
+
+            int start = pos;
+
+            while (pos < src.length() && (Character.isDigit(src.charAt(pos)) || src.charAt(pos) == '.')) { pos++; }
+
+            // mXparser wants digits after the point: "2." and "2.e1" are errors there
+            if (src.charAt(pos-1) == '.') { throw new IllegalArgumentException("malformed number at " + start); }
+
+            // scientific notation, but not the 'e' constant: 2e-3 vs 2*e
+            if (pos < src.length() && (src.charAt(pos) == 'e' || src.charAt(pos) == 'E')) {
+
+                int expPos = pos + 1;
+
+                if (expPos < src.length() && (src.charAt(expPos) == '+' || src.charAt(expPos) == '-')) { expPos++; }
+
+                if (expPos < src.length() && Character.isDigit(src.charAt(expPos))) {
+
+                    pos = expPos;
+                    while (pos < src.length() && Character.isDigit(src.charAt(pos))) { pos++; }
+                }
+            }
+
+            try {
+                return Double.parseDouble(src.substring(start, pos));
+            }
+
+            catch (NumberFormatException e) {
+                throw new IllegalArgumentException("malformed number at " + start);
+            }
+        }
+    }
+}
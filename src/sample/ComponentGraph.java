@@ -1,71 +1,211 @@
 package sample;
 
 import java.util.*;
-import static java.lang.Math.cos;
-import static java.lang.Math.sin;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
 
 public class ComponentGraph {
 
+    // cap on policy improvements of the mean cycle solver
+    private static final int HOWARD_ITERATIONS = 10000;
+    // smaller graphs are split by tarjan(), forking tasks does not pay off there
+    private static final int PARALLEL_SCC_NODES = 1 << 16;
+
     public class Node {
         // index and lowLink for tarjan -- node is unvisited by default;
         // id represents some additional info about node, e.g. cluster index for which this node belongs,
         // initial value -1 as default non-marked node.
         public int index = -1, lowLink = -1, id = -1;
         public double weight = -1;
-        public List<Integer> content;
+        // packed id, e.g. key of the cell in CellularArea
+        public long content;
 
-        public Node(List<Integer> content) {
+        public Node(long content) {
             this.content = content;
         }
 
         public String toString() {
-            return content.toString();
+            return Long.toString(content);
         }
     }
 
-    // graph internal data
-    HashMap<List<Integer>, Node> nodes = new LinkedHashMap<>();
-    HashMap<Node, List<Node>>    links = new HashMap<>();
+    // graph internal data: nodes in order of adding,
+    // nodeIndex maps content to position in that list
+    List<Node> nodes = new ArrayList<>();
+    LongIntHashMap nodeIndex = new LongIntHashMap();
+
+    // links in compressed sparse row form: node at position p leads to the
+    // positions targets[offsets[p]..offsets[p+1]-1]; counts (if kept) tell
+    // how many times each link was observed
+    private int[] offsets = new int[16];
+    private int[] targets = new int[0];
+    private int[] counts;
 
     // tarjan related data
-    private int index = 0, clusterIndex = 0, sccN = 0;
-    private ArrayDeque<Node> visited = new ArrayDeque<>();
-    private HashSet<List<Integer>> stack = new HashSet<>();
+    private int clusterIndex = 0, sccN = 0;
 
     // contains scc clusters (until sccN) and transit (after sccM) nodes
     private List<Set<Node>> concentratedNodes = new ArrayList<>();
 
-    // topological sorting data
-    private Stack<Node>  greyNodes = new Stack<>();
+    // topological sorting data: nodes in order of finishing dfs,
+    // entered marks positions of nodes dfs has already reached
     private List<Node> blackListed = new ArrayList<>();
+    private BitSet entered = new BitSet();
 
-    // whether the graph is SCC itself with continuously numbered nodes from 0
+    // whether the graph is SCC itself, its nodes are numbered by positions
     // let SCC+such_numeration = Well Organized Graph
     private boolean isWOG = false;
 
 
     // Node fabricating
-    public Node createNode(List<Integer> content) {
+    public Node createNode(long content) {
         return new Node(content);
     }
 
+    // new node has no links
     public void addNode(Node node) {
 
-        this.nodes.put(node.content, node);
-        this.links.put(node, new ArrayList<>());
+        int position = this.nodes.size();
+
+        this.nodeIndex.put(node.content, position);
+        this.nodes.add(node);
+
+        if (position + 2 > this.offsets.length) {
+            this.offsets = Arrays.copyOf(this.offsets, 2*this.offsets.length);
+        }
+
+        this.offsets[position+1] = this.offsets[position];
+    }
+
+    /**
+     *  Replaces all links at once, rows[p] holds target positions
+     *  of the node at position p (null for none).
+     *
+     * @param rowCounts multiplicities of the links in the same layout, or null
+     */
+    public void setLinks(int[][] rows, int[][] rowCounts) {
+
+        int n = this.nodes.size();
+
+        if (rows.length != n) {
+            throw new IllegalArgumentException("setLinks: " + rows.length + " rows for " + n + " nodes");
+        }
+
+        for (int p = 0; p < n; p++) {
+            this.offsets[p+1] = this.offsets[p] + (rows[p] == null ? 0 : rows[p].length);
+        }
+
+        this.targets = new int[this.offsets[n]];
+        this.counts = rowCounts == null ? null : new int[this.offsets[n]];
+
+        for (int p = 0; p < n; p++) {
+
+            if (rows[p] == null) { continue; }
+
+            System.arraycopy(rows[p], 0, this.targets, this.offsets[p], rows[p].length);
+            if (rowCounts != null) { System.arraycopy(rowCounts[p], 0, this.counts, this.offsets[p], rows[p].length); }
+        }
     }
 
-    // TODO add addLinkAll()
+    // shifts all later links, so it takes O(links); build big graphs with setLinks()
     public void addLink(Node from, Node to) {
-        this.links.get(from).add(to);
+
+        int p = getPosition(from);
+        int at = this.offsets[p+1];
+        int linkNumber = this.targets.length;
+
+        int[] newTargets = new int[linkNumber+1];
+        System.arraycopy(this.targets, 0, newTargets, 0, at);
+        System.arraycopy(this.targets, at, newTargets, at+1, linkNumber-at);
+        newTargets[at] = getPosition(to);
+        this.targets = newTargets;
+
+        if (this.counts != null) {
+
+            int[] newCounts = new int[linkNumber+1];
+            System.arraycopy(this.counts, 0, newCounts, 0, at);
+            System.arraycopy(this.counts, at, newCounts, at+1, linkNumber-at);
+            newCounts[at] = 1;
+            this.counts = newCounts;
+        }
+
+        for (int q = p+1; q <= this.nodes.size(); q++) { this.offsets[q]++; }
     }
 
-    public HashMap<List<Integer>, Node> getNodes() {
+    public List<Node> getNodes() {
         return this.nodes;
     }
 
-    public HashMap<Node, List<Node>> getLinks() {
-        return this.links;
+    // null if there is no such node
+    public Node getNode(long content) {
+
+        int position = this.nodeIndex.get(content);
+        return position < 0 ? null : this.nodes.get(position);
+    }
+
+    // position of the node in getNodes(), -1 if it is not in the graph
+    public int getPosition(Node node) {
+        return this.nodeIndex.get(node.content);
+    }
+
+    public int getNodeNumber() { return this.nodes.size(); }
+
+    public int getLinkNumber() { return this.targets.length; }
+
+    // valid up to index getNodeNumber(), see the field comment for the layout
+    public int[] getOffsets() { return this.offsets; }
+
+    public int[] getTargets() { return this.targets; }
+
+    // null unless counts were given to setLinks()
+    public int[] getCounts() { return this.counts; }
+
+    // target nodes of the node at given position, a new list
+    public List<Node> getLinks(int position) {
+
+        List<Node> result = new ArrayList<>(this.offsets[position+1] - this.offsets[position]);
+
+        for (int e = this.offsets[position]; e < this.offsets[position+1]; e++) {
+            result.add(this.nodes.get(this.targets[e]));
+        }
+
+        return result;
+    }
+
+    // links in CSR form with directions swapped: predecessors of
+    // position j are result[1][result[0][j]..result[0][j+1]-1]
+    private int[][] reverseLinks() {
+
+        int n = nodes.size();
+        int[] fromOffsets = new int[n+1];
+        int[] fromTargets = new int[targets.length];
+
+        for (int e = 0; e < targets.length; e++) { fromOffsets[targets[e]+1]++; }
+        for (int j = 0; j < n; j++) { fromOffsets[j+1] += fromOffsets[j]; }
+
+        int[] fill = Arrays.copyOf(fromOffsets, n);
+
+        for (int v = 0; v < n; v++) {
+            for (int e = offsets[v]; e < offsets[v+1]; e++) {
+                fromTargets[fill[targets[e]]++] = v;
+            }
+        }
+
+        return new int[][] {fromOffsets, fromTargets};
+    }
+
+    private boolean hasLink(int from, int to) {
+
+        for (int e = this.offsets[from]; e < this.offsets[from+1]; e++) {
+            if (this.targets[e] == to) { return true; }
+        }
+
+        return false;
     }
 
     public List<Set<Node>> getConcentratedNodes() { return this.concentratedNodes; }
@@ -74,19 +214,126 @@ public class ComponentGraph {
 
     public void setIsWog(boolean isWOG) { this.isWOG = isWOG; }
 
-    // returns set of transit nodes (not scc)
+    /**
+     *  Splits the graph into SCC clusters and transit nodes: by tarjan()
+     *  on one core or for small graphs, by forwardBackward() otherwise.
+     *  Cluster numbering depends on the algorithm used.
+     *
+     *  Returns set of transit nodes (not scc).
+     */
+    public Set<Node> findSccs() {
+
+        if (nodes.size() < PARALLEL_SCC_NODES || Runtime.getRuntime().availableProcessors() == 1) {
+            return tarjan();
+        }
+
+        return forwardBackward();
+    }
+
+    /**
+     *  Tarjan's algorithm without recursion: the dfs path is kept in
+     *  int arrays together with the next link to try from each of its
+     *  nodes, so stack depth does not depend on the graph. Components
+     *  come out in the same order as from the recursive formulation.
+     *
+     *  Returns set of transit nodes (not scc).
+     */
     public Set<Node> tarjan() {
 
-        for (Node n : links.keySet()) {
-            if (n != null && n.index == -1) {
-                strongConnect(n);
+        int n = nodes.size();
+        int[] order = new int[n], lowLink = new int[n];
+        int[] path = new int[n], cursor = new int[n];
+        // nodes of components not completed yet, stack marks them
+        int[] visited = new int[n];
+        BitSet stack = new BitSet(n);
+        int counter = 0, visitedTop = 0;
+
+        Arrays.fill(order, -1);
+
+        for (int root = 0; root < n; root++) {
+
+            if (order[root] != -1) { continue; }
+
+            int depth = 0;
+
+            path[0] = root;
+            cursor[0] = offsets[root];
+            order[root] = lowLink[root] = counter++;
+            visited[visitedTop++] = root;
+            stack.set(root);
+
+            while (depth >= 0) {
+
+                int v = path[depth];
+
+                if (cursor[depth] < offsets[v+1]) {
+
+                    int w = targets[cursor[depth]++];
+
+                    if (order[w] == -1) {
+
+                        depth++;
+                        path[depth] = w;
+                        cursor[depth] = offsets[w];
+                        order[w] = lowLink[w] = counter++;
+                        visited[visitedTop++] = w;
+                        stack.set(w);
+                    }
+
+                    else if (stack.get(w)) {
+                        lowLink[v] = Math.min(lowLink[v], order[w]);
+                    }
+
+                    continue;
+                }
+
+                // all links of v are passed, it may be the root of a component
+                if (lowLink[v] == order[v]) {
+
+                    HashSet<Node> cycle = new HashSet<>();
+                    int w;
+
+                    do {
+
+                        w = visited[--visitedTop];
+                        stack.clear(w);
+                        cycle.add(nodes.get(w));
+                    }
+                    while (w != v);
+
+                    // second condition marks auto-looping nodes as SCCs too
+                    if (cycle.size() > 1 || hasLink(v, v)) {
+
+                        for (Node elem : cycle) {
+                            elem.id = clusterIndex;
+                        }
+
+                        clusterIndex++;
+                        concentratedNodes.add(cycle);
+                        System.out.println("SCC detected with size " + cycle.size());
+                    }
+                }
+
+                depth--;
+
+                if (depth >= 0) {
+
+                    int u = path[depth];
+                    lowLink[u] = Math.min(lowLink[u], lowLink[v]);
+                }
             }
         }
 
+        for (int v = 0; v < n; v++) {
+
+            nodes.get(v).index = order[v];
+            nodes.get(v).lowLink = lowLink[v];
+        }
+
         Set<Node> transitNodes = new HashSet<>();
         sccN = clusterIndex;
 
-        for (Node each : links.keySet()) {
+        for (Node each : nodes) {
             // if it hasn't been marked with cluster id
             if (each.id == -1) {
 
@@ -99,337 +346,742 @@ public class ComponentGraph {
         return transitNodes;
     }
 
-    private void strongConnect(Node node) {
+    /**
+     *  Same split into SCC clusters and transit nodes as tarjan(), found
+     *  on all cores. Nodes without predecessors or successors in their
+     *  part of the graph are trimmed, repeatedly, which removes most
+     *  transit nodes of a symbolic image. The rest of a part is split by
+     *  forward-backward search: nodes both reachable from a pivot and
+     *  reaching it form its component, nodes only reached or only
+     *  reaching are split the same way by fork-join tasks, and the
+     *  remaining nodes go on with the next pivot.
+     *
+     *  Clusters are numbered by their first node position, so numbers
+     *  may differ from those of tarjan(); Node.index and lowLink are
+     *  not set. Returns set of transit nodes (not scc).
+     */
+    public Set<Node> forwardBackward() {
+
+        int n = nodes.size();
+        int[][] reversed = reverseLinks();
+        int[] members = new int[n];
+
+        for (int v = 0; v < n; v++) { members[v] = v; }
+
+        ConcurrentLinkedQueue<int[]> components = new ConcurrentLinkedQueue<>();
+        new ComponentTask(new int[n], reversed[0], reversed[1], new int[n], new int[n],
+                          new AtomicInteger(1), components, 0, members).invoke();
+
+        List<int[]> clusters = new ArrayList<>();
+
+        for (int[] component : components) {
+
+            // second condition marks auto-looping nodes as SCCs too
+            if (component.length > 1 || hasLink(component[0], component[0])) { clusters.add(component); }
+        }
+
+        // members of every component are in increasing order
+        clusters.sort(Comparator.comparingInt(component -> component[0]));
+
+        for (int[] component : clusters) {
+
+            HashSet<Node> cycle = new HashSet<>();
+
+            for (int v : component) {
+
+                Node elem = nodes.get(v);
+                elem.id = clusterIndex;
+                cycle.add(elem);
+            }
+
+            clusterIndex++;
+            concentratedNodes.add(cycle);
+            System.out.println("SCC detected with size " + cycle.size());
+        }
 
-        node.index = index;
-        node.lowLink = index;
-        index += 1;
+        Set<Node> transitNodes = new HashSet<>();
+        sccN = clusterIndex;
+
+        for (Node each : nodes) {
+            // if it hasn't been marked with cluster id
+            if (each.id == -1) {
 
-        visited.push(node);
-        stack.add(node.content);
+                each.id = clusterIndex++;
+                concentratedNodes.add(new HashSet<>(Arrays.asList(each)));
+                transitNodes.add(each);
+            }
+        }
 
-        List<Node> neighbours = links.get(node);
+        return transitNodes;
+    }
 
-        if (neighbours != null) {
+    /**
+     *  Splits nodes of one colour. The task trims them once, then takes
+     *  pivots one by one: the component of a pivot is output, its
+     *  forward and backward parts get fresh colours and become new tasks,
+     *  and the rest keeps the colour and stays with this task, losing
+     *  trimmed nodes as the parts around them are taken away. Tasks never
+     *  touch the same nodes, so they share arrays indexed by node position.
+     */
+    private class ComponentTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private static final int FORK_NODES = 4096;
+        // colours of nodes whose component is found and of trimmed (transit) nodes
+        private static final int DONE = -1, TRIMMED = -2;
+
+        private final int[] colours, fromOffsets, fromTargets, inDegree, outDegree;
+        private final AtomicInteger nextColour;
+        private final ConcurrentLinkedQueue<int[]> components;
+        private final int colour;
+        private final int[] members;
+
+        ComponentTask(int[] colours, int[] fromOffsets, int[] fromTargets, int[] inDegree, int[] outDegree,
+                      AtomicInteger nextColour, ConcurrentLinkedQueue<int[]> components,
+                      int colour, int[] members) {
+
+            this.colours = colours;
+            this.fromOffsets = fromOffsets;
+            this.fromTargets = fromTargets;
+            this.inDegree = inDegree;
+            this.outDegree = outDegree;
+            this.nextColour = nextColour;
+            this.components = components;
+            this.colour = colour;
+            this.members = members;
+        }
 
-            neighbours.forEach(n -> {
+        private ComponentTask part(int colour, int[] members) {
+            return new ComponentTask(colours, fromOffsets, fromTargets, inDegree, outDegree,
+                                     nextColour, components, colour, members);
+        }
 
-                if (n.index == -1) {
-                    strongConnect(n);
-                    node.lowLink = Math.min(node.lowLink, n.lowLink);
+        @Override
+        protected void compute() {
+
+            List<ComponentTask> forked = new ArrayList<>();
+            ArrayDeque<ComponentTask> work = new ArrayDeque<>();
+
+            work.push(this);
+
+            while (!work.isEmpty()) { work.pop().split(work, forked); }
+
+            for (ComponentTask part : forked) { part.join(); }
+        }
+
+        // finds components of all members left after trimming
+        private void split(ArrayDeque<ComponentTask> work, List<ComponentTask> forked) {
+
+            int[] reached = new int[members.length];
+            int[] reaching = new int[members.length];
+
+            trim(reached);
+
+            // pivots are taken from the middle on: on a chain of components in
+            // node order the first node would split off just one per search
+            for (int k = 0; k < members.length; k++) {
+
+                int pivot = members[(members.length/2 + k) % members.length];
+
+                // taken by components and parts of previous pivots, or trimmed
+                if (colours[pivot] != colour) { continue; }
+
+                int forward = nextColour.getAndIncrement();
+                int backward = nextColour.getAndIncrement();
+                int head = 0, reachedCount = 0, reachingCount = 0;
+
+                // forward search recolours nodes reached from the pivot
+                reached[reachedCount++] = pivot;
+                colours[pivot] = forward;
+
+                while (head < reachedCount) {
+
+                    int v = reached[head++];
+
+                    for (int e = offsets[v]; e < offsets[v+1]; e++) {
+
+                        int w = targets[e];
+
+                        if (colours[w] == colour) {
+
+                            colours[w] = forward;
+                            reached[reachedCount++] = w;
+                        }
+                    }
                 }
 
-                else if (stack.contains(n.content)) {
-                    node.lowLink = Math.min(node.lowLink, n.index);
+                // backward search: forward ones reached are the component
+                head = 0;
+                reaching[reachingCount++] = pivot;
+                colours[pivot] = DONE;
+
+                while (head < reachingCount) {
+
+                    int v = reaching[head++];
+
+                    for (int e = fromOffsets[v]; e < fromOffsets[v+1]; e++) {
+
+                        int u = fromTargets[e];
+
+                        if (colours[u] == forward) {
+
+                            colours[u] = DONE;
+                            reaching[reachingCount++] = u;
+                        }
+
+                        else if (colours[u] == colour) {
+
+                            colours[u] = backward;
+                            reaching[reachingCount++] = u;
+                        }
+                    }
                 }
-            });
+
+                int[] component = select(reaching, reachingCount, DONE);
+                int[] forwardOnly = select(reached, reachedCount, forward);
+                int[] backwardOnly = select(reaching, reachingCount, backward);
+
+                // members of a component are expected in increasing order
+                Arrays.sort(component);
+                components.add(component);
+
+                // only neighbours of the nodes taken away can become trimmable,
+                // so the rest is not trimmed all over again
+                int tail = 0;
+
+                for (int v : component) { tail = release(v, reached, tail); }
+                for (int v : forwardOnly) { tail = release(v, reached, tail); }
+                for (int v : backwardOnly) { tail = release(v, reached, tail); }
+
+                for (head = 0; head < tail; head++) { tail = release(reached[head], reached, tail); }
+
+                handOver(forward, forwardOnly, work, forked);
+                handOver(backward, backwardOnly, work, forked);
+            }
         }
 
-        if (node.lowLink == node.index) {
+        // trimmed node can't be on a cycle, even on an auto-loop
+        private void trim(int[] queue) {
 
-            HashSet<Node> cycle = new HashSet<>();
+            int tail = 0;
+
+            for (int v : members) {
+
+                inDegree[v] = 0;
+                outDegree[v] = 0;
 
-            while (true) {
+                for (int e = offsets[v]; e < offsets[v+1]; e++) { if (colours[targets[e]] == colour) { outDegree[v]++; } }
+                for (int e = fromOffsets[v]; e < fromOffsets[v+1]; e++) { if (colours[fromTargets[e]] == colour) { inDegree[v]++; } }
+            }
+
+            for (int v : members) {
 
-                Node p = visited.pop();
-                stack.remove(p.content);
-                cycle.add(p);
+                if (inDegree[v] == 0 || outDegree[v] == 0) {
 
-                if (p == node) {
-                    break;
+                    colours[v] = TRIMMED;
+                    queue[tail++] = v;
                 }
             }
 
-            // second condition marks auto-looping nodes as SCCs too
-            if (cycle.size() > 1 ||
-                    links.get(node).contains(node)) {
+            for (int head = 0; head < tail; head++) { tail = release(queue[head], queue, tail); }
+        }
+
+        // v has left the colour: neighbours lose a link and are queued once trimmed
+        private int release(int v, int[] queue, int tail) {
+
+            for (int e = offsets[v]; e < offsets[v+1]; e++) {
+
+                int w = targets[e];
+
+                if (colours[w] == colour && --inDegree[w] == 0) {
+
+                    colours[w] = TRIMMED;
+                    queue[tail++] = w;
+                }
+            }
+
+            for (int e = fromOffsets[v]; e < fromOffsets[v+1]; e++) {
+
+                int u = fromTargets[e];
 
-                for (Node elem : cycle) {
-                    elem.id = clusterIndex;
+                if (colours[u] == colour && --outDegree[u] == 0) {
+
+                    colours[u] = TRIMMED;
+                    queue[tail++] = u;
                 }
+            }
+
+            return tail;
+        }
+
+        // nodes of the queue that have given colour
+        private int[] select(int[] queue, int length, int wanted) {
+
+            int count = 0;
+
+            for (int i = 0; i < length; i++) { if (colours[queue[i]] == wanted) { count++; } }
 
-                clusterIndex++;
-                concentratedNodes.add(cycle);
-                System.out.println("SCC detected with size " + cycle.size());
+            int[] result = new int[count];
+            count = 0;
+
+            for (int i = 0; i < length; i++) { if (colours[queue[i]] == wanted) { result[count++] = queue[i]; } }
+
+            return result;
+        }
+
+        // a part holding most of the nodes stays in this thread: forking it,
+        // a chain of components would nest as many joins on the stack
+        private void handOver(int partColour, int[] partMembers,
+                              ArrayDeque<ComponentTask> work, List<ComponentTask> forked) {
+
+            if (partMembers.length == 0) { return; }
+
+            ComponentTask part = part(partColour, partMembers);
+
+            if (partMembers.length >= FORK_NODES && 2*partMembers.length <= members.length) {
+
+                part.fork();
+                forked.add(part);
             }
+
+            else { work.push(part); }
         }
     }
 
     // creates graph where each node corresponds to cluster in concentratedNodes of graph-caller
     public ComponentGraph createConcentratedGraph() {
 
-        // newContentsStorage is for accelerating search by lists as elements of Map.keyset()
-        List<List<Integer>> newContentsStorage = new ArrayList<>();
         ComponentGraph newGraph = new ComponentGraph();
-        int i = 0;
+        int clusters = concentratedNodes.size();
 
-        for (Set<Node> cluster : concentratedNodes) {
+        for (int i = 0; i < clusters; i++) {
 
             // node in new graph contains index of corresponding cluster as content and as id
-            List<Integer> newContent = new ArrayList<>(Arrays.asList(i));
-            Node newNode = createNode(newContent);
+            Node newNode = createNode(i);
 
-            newContentsStorage.add(newContent);
             newNode.id = i;
             newGraph.addNode(newNode);
-            i++;
         }
 
-        i = 0;
-
-        for (Set<Node> cluster : concentratedNodes) {
+        int[][] rows = new int[clusters][];
+        int[] buffer = new int[16];
 
-            Set<Node> newLinks = new HashSet<>();
-            Set<Node> clusterLinks = new HashSet<>();
-            Node nodeFrom = newGraph.nodes.get(newContentsStorage.get(i));
+        for (int i = 0; i < clusters; i++) {
 
-            // filling the set for all ways from cluster
-            for (Node node : cluster) {
-                clusterLinks.addAll(links.get(node));
-            }
+            int n = 0;
 
             // we can be sure that node.id equals to concentratedNodes index of that cluster id
-            for (Node node : clusterLinks) {
+            for (Node node : concentratedNodes.get(i)) {
+
+                int v = nodeIndex.get(node.content);
+
+                for (int e = offsets[v]; e < offsets[v+1]; e++) {
 
-                int id = node.id;
-                Node nodeTo = newGraph.nodes.get(newContentsStorage.get(id));
+                    int id = nodes.get(targets[e]).id;
 
-                // we must not register auto-loops for further correct sortNodes() work
-                if (nodeTo != nodeFrom)
-                    newLinks.add(nodeTo);
+                    // we must not register auto-loops for further correct sortNodes() work
+                    if (id == i) { continue; }
+
+                    if (n == buffer.length) { buffer = Arrays.copyOf(buffer, 2*n); }
+                    buffer[n++] = id;
+                }
             }
 
-            newGraph.links.put(nodeFrom, new ArrayList<>(newLinks));
-            i++;
+            rows[i] = uniqueSorted(buffer, n);
         }
 
+        newGraph.setLinks(rows, null);
         return newGraph;
     }
 
-    public void dfs(Node node) {
+    // sorted distinct values of buffer[0..n-1]
+    private static int[] uniqueSorted(int[] buffer, int n) {
+
+        Arrays.sort(buffer, 0, n);
+        int unique = 0;
 
-        greyNodes.push(node);
-        List<Node> adjacencies = links.get(node);
+        for (int k = 0; k < n; k++) {
+            if (unique == 0 || buffer[k] != buffer[unique-1]) { buffer[unique++] = buffer[k]; }
+        }
+
+        return Arrays.copyOf(buffer, unique);
+    }
+
+    /**
+     *  Well organized graph of the cluster i < getSccNumber(): it shares
+     *  Node objects with this graph, numbered by their positions in the
+     *  new one, and keeps only links inside the cluster. Node ids stay
+     *  cluster indices of this graph.
+     */
+    public ComponentGraph createSccGraph(int i) {
+
+        ComponentGraph scc = new ComponentGraph();
+        Set<Node> nodePool = this.concentratedNodes.get(i);
+
+        for (Node node : nodePool) {
+            scc.addNode(node);
+        }
+
+        int[][] rows = new int[nodePool.size()][];
+        int[] buffer = new int[16];
+
+        for (int v = 0; v < rows.length; v++) {
+
+            int p = this.nodeIndex.get(scc.nodes.get(v).content);
+            int n = 0;
 
-        for (Node neighbour : adjacencies) {
+            for (int e = this.offsets[p]; e < this.offsets[p+1]; e++) {
 
-            //System.out.println("  ngbr " + neighbour.content);
-            if (!blackListed.contains(neighbour))
-                dfs(neighbour);
+                int w = scc.nodeIndex.get(this.nodes.get(this.targets[e]).content);
+                if (w < 0) { continue; }
+
+                if (n == buffer.length) { buffer = Arrays.copyOf(buffer, 2*n); }
+                buffer[n++] = w;
+            }
+
+            rows[v] = Arrays.copyOf(buffer, n);
         }
 
-        blackListed.add(greyNodes.pop());
+        scc.setLinks(rows, null);
+        scc.isWOG = true;
+
+        return scc;
     }
 
-    public List<Node> sortNodes() {
+    // appends nodes reachable from the given one and not reached before
+    // to the sorting order, each after all nodes it leads to
+    public void dfs(Node node) {
+
+        int n = nodes.size();
+        dfs(nodeIndex.get(node.content), new int[n], new int[n]);
+    }
+
+    // iterative, path and cursor are workspace for the dfs path and next links of its nodes
+    private void dfs(int root, int[] path, int[] cursor) {
+
+        if (entered.get(root)) { return; }
 
-        for (Node from : links.keySet()) {
+        int depth = 0;
+
+        path[0] = root;
+        cursor[0] = offsets[root];
+        entered.set(root);
+
+        while (depth >= 0) {
+
+            int v = path[depth];
+
+            if (cursor[depth] < offsets[v+1]) {
+
+                int w = targets[cursor[depth]++];
+
+                if (!entered.get(w)) {
+
+                    depth++;
+                    path[depth] = w;
+                    cursor[depth] = offsets[w];
+                    entered.set(w);
+                }
 
-            //System.out.println("from " + from.content);
-            if (blackListed.contains(from))
                 continue;
+            }
+
+            blackListed.add(nodes.get(v));
+            depth--;
+        }
+    }
+
+    // reversed topological order, graph must be acyclic (e.g. concentrated one)
+    public List<Node> sortNodes() {
+
+        int n = nodes.size();
+        int[] path = new int[n], cursor = new int[n];
 
-            dfs(from);
+        for (int v = 0; v < n; v++) {
+            dfs(v, path, cursor);
         }
 
         return this.blackListed;
     }
 
-    private boolean isInf(double val, double inf) {
+    /**
+     *  Positions of nodes in topological order (Kahn's algorithm):
+     *  every node comes before all nodes it leads to, ties go by position.
+     *  Nodes on cycles are left out, so for the concentrated graph the
+     *  result is a permutation of its cluster indices.
+     */
+    public int[] topologicalOrder() {
+
+        int n = nodes.size();
+        int[] inDegree = new int[n];
+        int[] order = new int[n];
+        int head = 0, tail = 0;
+
+        for (int e = 0; e < targets.length; e++) { inDegree[targets[e]]++; }
+
+        for (int v = 0; v < n; v++) { if (inDegree[v] == 0) { order[tail++] = v; } }
+
+        while (head < tail) {
+
+            int v = order[head++];
 
-        if (inf < 0 && val < inf+1.0 ||
-                inf > 0 && val > inf-1.0) {
-            return true;
+            for (int e = offsets[v]; e < offsets[v+1]; e++) {
+                if (--inDegree[targets[e]] == 0) { order[tail++] = targets[e]; }
+            }
         }
 
-        else return false;
+        return tail == n ? order : Arrays.copyOf(order, tail);
     }
 
-    // returns number of valid rows
-    private int dpFill(double[][] dp, double inf, boolean inverseWeights) {
+    /**
+     *  Minimum and maximum mean weight of cycles of a WOG, where a link
+     *  weighs as much as its source node (XMC = extreme mean cycle).
+     *  Howard's policy iteration on the links arrays: O(V) memory and
+     *  usually a handful of sweeps over the links, while node weights
+     *  are left untouched. Returns {min, max}, NaN for a non-WOG.
+     */
+    public double[] getXmcWeights() {
 
-        // vNum + 1
-        int rows = dp.length;
+        if (!this.isWOG) {
 
-        // initializing
-        for (int i = 0; i < rows; i++) {
-            for (int j = 0; j < dp[i].length; j++) {
-                dp[i][j] = inf;
-            }
+            System.err.println("getXmcWeights: given graph is not WOG");
+            return new double[] {Double.NaN, Double.NaN};
         }
 
-        // shortest distance from first vertex
-        // to itself consisting of 0 edges
-        dp[0][0] = 0;
+        int n = this.nodes.size();
+        double[] weights = new double[n];
 
-        // reorganizing links structure (reversing)
-        Map<Node, List<Node>> fromNodes = new HashMap<>();
+        for (int v = 0; v < n; v++) { weights[v] = this.nodes.get(v).weight; }
 
-        for (Map.Entry<Node, List<Node>> entry : links.entrySet()) {
+        double min = minMeanCycle(weights);
 
-            Node node = entry.getKey();
+        for (int v = 0; v < n; v++) { weights[v] = -weights[v]; }
 
-            if (inverseWeights) { node.weight = -node.weight; }
-            fromNodes.put(node, new ArrayList<>());
-        }
+        return new double[] {min, -minMeanCycle(weights)};
+    }
 
-        for (Map.Entry<Node, List<Node>> entry : links.entrySet()) {
-            for (Node node : entry.getValue()) {
+    // Howard's algorithm for the minimum cycle mean, every node must have a link
+    private double minMeanCycle(double[] weights) {
 
-                fromNodes.get(node).add(entry.getKey());
+        int n = this.nodes.size();
+        int[] policy = new int[n];
+        double[] eta = new double[n], bias = new double[n];
+        // dfs walks along the policy graph, walk ids mark their nodes
+        int[] walk = new int[n], path = new int[n], pathIndex = new int[n];
+        double scale = 1.0;
+
+        for (int v = 0; v < n; v++) {
+
+            if (this.offsets[v] == this.offsets[v+1]) {
+
+                System.err.println("minMeanCycle: node without links, graph is not SCC");
+                return Double.NaN;
             }
+
+            policy[v] = this.targets[this.offsets[v]];
+            scale = Math.max(scale, Math.abs(weights[v]));
         }
 
-        Map<Integer, List<Node>> idNodes = new HashMap<>();
+        double epsilon = 1e-12 * scale * n;
 
-        for (Map.Entry<Node, List<Node>> entry : fromNodes.entrySet()) {
-            idNodes.put(entry.getKey().id, entry.getValue());
-        }
+        for (int iteration = 0; iteration < HOWARD_ITERATIONS; iteration++) {
 
-        for (int i = 1; i < rows; i++)
-        {
-            for (int j = 0; j < dp[i].length; j++)
-            {
-                List<Node> jLinks = idNodes.get(j);
+            // policy evaluation: every node leads to one cycle of the policy graph,
+            // eta is the mean of that cycle and bias is the relative path weight
+            Arrays.fill(walk, 0);
 
-                for (int k = 0; k < jLinks.size(); k++)
-                {
-                    if (!isInf(dp[i-1][jLinks.get(k).id], inf))
-                    {
-                        double curr_wt = dp[i-1][jLinks.get(k).id] +
-                                jLinks.get(k).weight;
+            for (int start = 0, walkId = 1; start < n; start++, walkId++) {
 
-                        if (isInf(dp[i][j], inf))
-                            dp[i][j] = curr_wt;
-                        else
-                            dp[i][j] = Math.min(dp[i][j], curr_wt);
-                    }
+                if (walk[start] != 0) { continue; }
+
+                int length = 0, v = start;
+
+                while (walk[v] == 0) {
+
+                    walk[v] = walkId;
+                    pathIndex[v] = length;
+                    path[length++] = v;
+                    v = policy[v];
                 }
-            }
-        }
 
-        int rowsToIgnore = 0;
+                int evaluated = length;
+
+                // closed a new cycle, its first node gets zero bias
+                if (walk[v] == walkId) {
+
+                    int first = pathIndex[v];
+                    double sum = 0.0;
+
+                    for (int k = first; k < length; k++) { sum += weights[path[k]]; }
+
+                    double mean = sum / (length - first);
 
-        for (int i = rows-1; i > 0; i--) {
+                    eta[v] = mean;
+                    bias[v] = 0.0;
 
-            int infCounter = 0;
+                    for (int k = length-1; k > first; k--) {
 
-            for (int j = 0; j < dp[i].length; j++) {
-                if (!isInf(dp[i][j], inf)) {
-                    break;
+                        int u = path[k];
+                        eta[u] = mean;
+                        bias[u] = weights[u] - mean + bias[policy[u]];
+                    }
+
+                    evaluated = first;
                 }
 
-                else {
-                    infCounter++;
+                for (int k = evaluated-1; k >= 0; k--) {
+
+                    int u = path[k];
+                    eta[u] = eta[policy[u]];
+                    bias[u] = weights[u] - eta[u] + bias[policy[u]];
                 }
             }
 
-            if (infCounter == dp[i].length) {
-                rowsToIgnore++;
-            }
-        }
+            // policy improvement: lower cycle means first, then lower biases
+            boolean changed = false;
 
-//        for (int i = 0; i < rows; i++) {
-//            for (int j = 0; j < dp[i].length; j++) {
-//                System.out.print(dp[i][j] + " ");
-//            }
-//
-//            System.out.println();
-//        }
+            for (int v = 0; v < n; v++) {
 
-//        System.out.println("Reduced " + rowsToIgnore);
-        return rowsToIgnore;
-    }
+                int best = policy[v];
 
-    // MMC = extreme min mean cycle
-    // pls ensure that caller is Well Organized Graph
-    private double getMmcWeight(boolean inverseWeights) {
+                for (int e = this.offsets[v]; e < this.offsets[v+1]; e++) {
+                    if (eta[this.targets[e]] < eta[best] - epsilon) { best = this.targets[e]; }
+                }
 
-        if (!this.isWOG) {
+                if (eta[best] < eta[v] - epsilon) {
 
-            System.err.println("getMinMeanCycleWeight: given graph is not WOG");
-            return -1;
-        }
+                    policy[v] = best;
+                    changed = true;
+                }
+            }
 
-        // number of vertices
-        int vNum = this.links.size();
-        double inf = -1000000.0;
-        // matrix for storing weights of paths from 1st node to another
-        double[][] dp = new double[vNum+1][vNum];
-        int rowsToIgnore = dpFill(dp, inf, inverseWeights);
+            if (!changed) {
 
-        double[] fracs = new double[vNum];
+                for (int v = 0; v < n; v++) {
 
-        for (int i = 0; i < vNum; i++) {
+                    int best = policy[v];
+                    double bestBias = bias[v];
 
-            fracs[i] = inf;
-        }
+                    for (int e = this.offsets[v]; e < this.offsets[v+1]; e++) {
 
-        int lastRow = vNum - rowsToIgnore;
+                        int u = this.targets[e];
+                        double candidate = weights[v] - eta[v] + bias[u];
 
-        for (int i = 0; i < vNum; i++) {
+                        if (Math.abs(eta[u] - eta[v]) <= epsilon && candidate < bestBias - epsilon) {
 
-            // checking for nonInfinity
-            if (!isInf(dp[lastRow][i], inf)) {
-                for (int j = 0; j < lastRow; j++) {
-                    if (!isInf(dp[j][i], inf)) {
-                        fracs[i] = Math.max(((double) dp[lastRow][i]-dp[j][i])/(lastRow-j), fracs[i]);
+                            best = u;
+                            bestBias = candidate;
+                        }
+                    }
+
+                    if (best != policy[v]) {
+
+                        policy[v] = best;
+                        changed = true;
                     }
                 }
             }
-        }
 
-        double min = 0;
+            if (!changed) {
 
-        for (int i = 0; i < vNum; i++) {
-            if (!isInf(fracs[i], inf)) {
+                double min = eta[0];
+                for (int v = 1; v < n; v++) { min = Math.min(min, eta[v]); }
 
-                min = fracs[i];
-                break;
+                return min;
             }
         }
 
-        for (int i = 0; i < vNum; i++) {
+        System.err.println("minMeanCycle: no convergence in " + HOWARD_ITERATIONS + " iterations");
+        double min = eta[0];
+        for (int v = 1; v < n; v++) { min = Math.min(min, eta[v]); }
+
+        return min;
+    }
 
-            if (!isInf(fracs[i], inf) &&
-                    fracs[i] < min) {
+    /**
+     *  XMC weights of every SCC cluster, {min, max} at index of the
+     *  cluster; ensure concentratedNodes and node weights are filled.
+     */
+    public double[][] getSccXmcWeights() {
+        return mapSccGraphs(ComponentGraph::getXmcWeights).toArray(new double[0][]);
+    }
 
-                min = fracs[i];
-            }
+    /**
+     *  Applies analysis to the WOG of every SCC cluster (see createSccGraph),
+     *  result for cluster i is at index i. Clusters are processed in
+     *  parallel, largest first for load balance; analysis must be safe
+     *  to run concurrently, as it is for graphs sharing only reads
+     *  of this one.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> List<T> mapSccGraphs(Function<ComponentGraph, T> analysis) {
+
+        Object[] results = new Object[sccN];
+        Integer[] order = largestSccFirst();
+
+        forEachScc(order, Math.min(sccN, Runtime.getRuntime().availableProcessors()),
+                   i -> results[i] = analysis.apply(createSccGraph(i)));
+
+        return (List<T>) Arrays.asList(results);
+    }
+
+    /**
+     *  Same as above for analysis without result that needs pairBytes
+     *  of memory per pair of cluster nodes, like the dense matrix of
+     *  constructWogFlow. Only as many clusters run at once as the largest
+     *  of them fit in half of the heap; the largest one always runs.
+     */
+    public void mapSccGraphs(Consumer<ComponentGraph> analysis, long pairBytes) {
+
+        if (sccN == 0) { return; }
+
+        Integer[] order = largestSccFirst();
+        int maxWorkers = Math.min(sccN, Runtime.getRuntime().availableProcessors());
+        long budget = Runtime.getRuntime().maxMemory()/2;
+        long size = concentratedNodes.get(order[0]).size();
+        long memory = pairBytes*size*size;
+        int workers = 1;
+
+        // any clusters running together need no more than as many largest ones
+        while (workers < maxWorkers) {
+
+            size = concentratedNodes.get(order[workers]).size();
+            memory += pairBytes*size*size;
+
+            if (memory > budget) { break; }
+            workers++;
         }
 
-        return min;
+        forEachScc(order, workers, i -> analysis.accept(createSccGraph(i)));
     }
 
-    // XMC = extreme mean cycle (min or max)
-    // ensure concentratedNodes is filled
-    public void printXmcGraph() {
+    private Integer[] largestSccFirst() {
 
-        // iterating over all components, then calculating XMC for each
-        for (int i = 0; i < sccN; i++) {
+        Integer[] order = new Integer[sccN];
 
-            ComponentGraph scc = new ComponentGraph();
-            Set<Node> nodePool = new HashSet<>(this.concentratedNodes.get(i));
-            int id = 0;
+        for (int i = 0; i < sccN; i++) { order[i] = i; }
+        Arrays.sort(order, (a, b) -> concentratedNodes.get(b).size() - concentratedNodes.get(a).size());
 
-            for (Node node : nodePool) {
+        return order;
+    }
 
-                node.id = id++;
-                scc.nodes.put(node.content, node);
+    private void forEachScc(Integer[] order, int workers, IntConsumer action) {
 
-                List<Node> nodeLinks = new ArrayList<>();
-                scc.links.put(node, nodeLinks);
+        // every worker takes the next cluster in order, so big ones start first
+        AtomicInteger next = new AtomicInteger();
 
-                for (Node ngbr : this.links.get(node)) {
-                    if (nodePool.contains(ngbr)) {
-                        nodeLinks.add(ngbr);
-                    }
-                }
-            }
+        IntStream.range(0, workers).parallel().forEach(worker -> {
+            for (int k = next.getAndIncrement(); k < sccN; k = next.getAndIncrement()) { action.accept(order[k]); }
+        });
+    }
 
-            scc.isWOG = true;
-            System.out.println("[" + scc.getMmcWeight(false) + ", " +
-                    (-scc.getMmcWeight(true)) + "]");
+    // XMC = extreme mean cycle (min or max)
+    // ensure concentratedNodes is filled
+    public void printXmcGraph() {
+
+        for (double[] xmc : getSccXmcWeights()) {
+            System.out.println("[" + xmc[0] + ", " + xmc[1] + "]");
         }
     }
 
@@ -486,7 +1138,7 @@ public class ComponentGraph {
         }
 
         // num of vertices
-        int vNum = this.links.size();
+        int vNum = this.nodes.size();
         // building incidence matrix as initial state of flow matrix
         double flowMatrix[][] = new double[vNum][vNum];
 
@@ -497,13 +1149,11 @@ public class ComponentGraph {
             }
         }
 
-        for (Map.Entry<Node, List<Node>> entry : this.links.entrySet()) {
-
-            int i = entry.getKey().id;
-
-            for (Node each : entry.getValue()) {
+        // in WOG positions are ids
+        for (int i = 0; i < vNum; i++) {
+            for (int e = this.offsets[i]; e < this.offsets[i+1]; e++) {
 
-                flowMatrix[i][each.id] = 1.0;
+                flowMatrix[i][this.targets[e]] = 1.0;
             }
         }
 
@@ -550,37 +1200,45 @@ public class ComponentGraph {
 
         int i = 0;
 
-        for (Node each : this.links.keySet()) {
+        for (Node each : this.nodes) {
 
             each.weight = (i%2==0)? 1.0: -1.0;
             i++;
         }
     }
 
-    // ca is the CellularArea object that's associated with current graph
-    public void fillJacobianWeights(CellularArea ca) {
+    // ca is the CellularArea object that's associated with current graph,
+    // eF and eG are compiled over (x, y); partial derivatives come from
+    // automatic differentiation, so any map typed by user works
+    public void fillJacobianWeights(CellularArea ca,
+                                    CompiledExpression eF,
+                                    CompiledExpression eG) {
 
-        for (Node each : this.links.keySet()) {
+        List<Node> nodeList = this.nodes;
 
-            CellularArea finalCell = ca.getCellById(each.content);
+        // evaluators are not thread-safe, each worker thread gets own copies
+        ThreadLocal<CompiledExpression[]> evaluators =
+                ThreadLocal.withInitial(() -> new CompiledExpression[] {eF.copy(), eG.copy()});
 
-            // getting middle point
-            double x = (finalCell.getFinishX()-finalCell.getStartX())/2 + finalCell.getStartX();
-            double y = (finalCell.getFinishY()-finalCell.getStartY())/2 + finalCell.getStartY();
+        nodeList.parallelStream().forEach(each -> {
+
+            CompiledExpression[] e = evaluators.get();
+            int finalCell = ca.getCellById(each.content);
 
-            double TT  = 0.4 - 6/(1 + x*x + y*y);
-            double TTX = 12*x/((1+x*x+y*y)*(1+x*x+y*y));
-            double TTY = 12*y/((1+x*x+y*y)*(1+x*x+y*y));
+            // getting middle point
+            double[] vars = new double[] {
+                    ca.getCellWidth(finalCell)/2 + ca.getCellStartX(finalCell),
+                    ca.getCellHeight(finalCell)/2 + ca.getCellStartY(finalCell)};
+            double[] gradF = new double[2];
+            double[] gradG = new double[2];
 
-            double dfdx = 0.9*(cos(TT)*(1 - y*TTX)  - x*TTX*sin(TT));
-            double dfdy = 0.9*(sin(TT)*(-1 - x*TTY) - y*TTY*cos(TT));
-            double dgdx = 0.9*(sin(TT)*(1 - y*TTX)  + x*TTX*cos(TT));
-            double dgdy = 0.9*(cos(TT)*(1 + x*TTY)  - y*TTY*sin(TT));
+            e[0].evaluateGradient(vars, gradF);
+            e[1].evaluateGradient(vars, gradG);
 
-//            double dfdx = 2*x;
-//            double dfdy = -2*y;
-//            double dgdx = 2*y;
-//            double dgdy = 2*x;
+            double dfdx = gradF[0];
+            double dfdy = gradF[1];
+            double dgdx = gradG[0];
+            double dgdy = gradG[1];
 
             double b11 = dfdx*dfdx + dgdx*dgdx;
             double b12 = dfdx*dfdy + dgdx*dgdy;
@@ -593,7 +1251,7 @@ public class ComponentGraph {
             double k2 = (b11+b22-dRoot)/2;
 
             each.weight = Math.log(Math.max(k1, k2))/2;
-        }
+        });
     }
 
 
@@ -608,6 +1266,7 @@ public class ComponentGraph {
 //            }
 //        }
 
-        System.out.println("Overall graph vertices number: " + links.keySet().size());
+        System.out.println("Overall graph vertices number: " + nodes.size() +
+                           ", links number: " + targets.length);
     }
 }
@@ -0,0 +1,137 @@
+package sample;
+
+/**
+ *  System of any dimension given by one expression per state variable,
+ *  either as right-hand sides of ODEs dx_i/dt = f_i(x, t)
+ *  or as a discrete map x_i -> f_i(x).
+ *  Expressions may use all state variables and "t".
+ *
+ *  State is a plain double[] ordered as varNames; all step
+ *  workspace is allocated in the constructor, so stepping
+ *  never allocates. Not thread-safe, use copy() per thread.
+ */
+public class DynamicSystem {
+
+    private final String[] varNames;
+    private final String[] expressions;
+    private final int dim;
+    private final CompiledExpression[] rhs;
+
+    // workspace: state followed by t, RK4 stages
+    private final double[] args;
+    private final double[] k1, k2, k3, k4, tmp;
+    private final double[] grad;
+
+
+    public DynamicSystem(String[] varNames, String[] expressions) {
+
+        if (varNames.length != expressions.length) {
+            throw new IllegalArgumentException("DynamicSystem: " + varNames.length + " variables but " +
+                    expressions.length + " expressions");
+        }
+
+        this.varNames = varNames.clone();
+        this.expressions = expressions.clone();
+        this.dim = varNames.length;
+
+        String[] argNames = new String[dim+1];
+        System.arraycopy(this.varNames, 0, argNames, 0, dim);
+        argNames[dim] = "t";
+
+        this.rhs = new CompiledExpression[dim];
+        for (int i = 0; i < dim; i++) { rhs[i] = CompiledExpression.compile(expressions[i], argNames); }
+
+        this.args = new double[dim+1];
+        this.k1 = new double[dim];
+        this.k2 = new double[dim];
+        this.k3 = new double[dim];
+        this.k4 = new double[dim];
+        this.tmp = new double[dim];
+        this.grad = new double[dim+1];
+    }
+
+    private DynamicSystem(DynamicSystem other) {
+
+        this.varNames = other.varNames;
+        this.expressions = other.expressions;
+        this.dim = other.dim;
+        this.rhs = new CompiledExpression[dim];
+        for (int i = 0; i < dim; i++) { rhs[i] = other.rhs[i].copy(); }
+
+        this.args = new double[dim+1];
+        this.k1 = new double[dim];
+        this.k2 = new double[dim];
+        this.k3 = new double[dim];
+        this.k4 = new double[dim];
+        this.tmp = new double[dim];
+        this.grad = new double[dim+1];
+    }
+
+    // independent instance with own workspace
+    public DynamicSystem copy() { return new DynamicSystem(this); }
+
+    public int getDimension() { return dim; }
+
+    public String[] getVarNames() { return varNames.clone(); }
+
+    public String[] getExpressions() { return expressions.clone(); }
+
+    // evaluators of f_i over (varNames..., t)
+    CompiledExpression getRhs(int i) { return rhs[i]; }
+
+    /**
+     *  out[i] = f_i(state, t); out may be the same array as state
+     */
+    public void evaluate(double[] state, double t, double[] out) {
+
+        System.arraycopy(state, 0, args, 0, dim);
+        args[dim] = t;
+
+        for (int i = 0; i < dim; i++) { out[i] = rhs[i].evaluate(args); }
+    }
+
+    /**
+     *  Same as evaluate(), in the same pass fills Jacobian matrix
+     *  jac[i*dim + j] = df_i/dx_j (row-major, dim x dim)
+     *  by automatic differentiation.
+     */
+    public void evaluateWithJacobian(double[] state, double t, double[] out, double[] jac) {
+
+        System.arraycopy(state, 0, args, 0, dim);
+        args[dim] = t;
+
+        for (int i = 0; i < dim; i++) {
+
+            out[i] = rhs[i].evaluateGradient(args, grad);
+            // last gradient component is df_i/dt, not a part of Jacobian
+            System.arraycopy(grad, 0, jac, i*dim, dim);
+        }
+    }
+
+    public void rungeKuttaStep(double[] state, double t, double deltaT) {
+
+        evaluate(state, t, k1);
+        for (int i = 0; i < dim; i++) { tmp[i] = state[i] + deltaT*k1[i]/2; }
+
+        evaluate(tmp, t + deltaT/2, k2);
+        for (int i = 0; i < dim; i++) { tmp[i] = state[i] + deltaT*k2[i]/2; }
+
+        evaluate(tmp, t + deltaT/2, k3);
+        for (int i = 0; i < dim; i++) { tmp[i] = state[i] + deltaT*k3[i]; }
+
+        evaluate(tmp, t + deltaT, k4);
+        for (int i = 0; i < dim; i++) {
+            state[i] += deltaT*(k1[i] + 2.0*k2[i] + 2.0*k3[i] + k4[i])/6.0;
+        }
+    }
+
+    public void eulerStep(double[] state, double t, double deltaT) {
+
+        evaluate(state, t, k1);
+        for (int i = 0; i < dim; i++) { state[i] += deltaT*k1[i]; }
+    }
+
+    public void mapStep(double[] state) {
+        evaluate(state, 0.0, state);
+    }
+}
@@ -0,0 +1,161 @@
+package sample;
+
+import java.util.Arrays;
+
+/**
+ *  Set of initial conditions advanced together in time.
+ *  States are kept as struct-of-arrays (one double[] lane per variable),
+ *  so each step evaluates f and g once for the whole ensemble
+ *  through CompiledExpression.evaluateLanes.
+ *  All members share the same time t.
+ */
+public class Ensemble {
+
+    private final int size;
+    private final double[] xs;
+    private final double[] ys;
+    private double t;
+
+    // step workspace, allocated once
+    private final double[] argX, argY, argT;
+    private final double[][] args;
+    private final double[] kF1, kF2, kF3, kF4;
+    private final double[] kG1, kG2, kG3, kG4;
+
+
+    public Ensemble(double[] initXs, double[] initYs, double initT) {
+
+        if (initXs.length != initYs.length) {
+            throw new IllegalArgumentException("Ensemble: coordinate arrays differ in length");
+        }
+
+        this.size = initXs.length;
+        this.xs = initXs.clone();
+        this.ys = initYs.clone();
+        this.t = initT;
+
+        this.argX = new double[size];
+        this.argY = new double[size];
+        this.argT = new double[size];
+        this.args = new double[][] {argX, argY, argT};
+
+        this.kF1 = new double[size];
+        this.kF2 = new double[size];
+        this.kF3 = new double[size];
+        this.kF4 = new double[size];
+        this.kG1 = new double[size];
+        this.kG2 = new double[size];
+        this.kG3 = new double[size];
+        this.kG4 = new double[size];
+    }
+
+    /**
+     *  Ensemble of count points evenly covering the disc
+     *  of given radius around (centerX, centerY), placed
+     *  on the golden angle (Vogel) spiral.
+     */
+    public static Ensemble disc(double centerX, double centerY, double initT,
+                                double radius, int count) {
+
+        double[] xs = new double[count];
+        double[] ys = new double[count];
+        double goldenAngle = Math.PI * (3.0 - Math.sqrt(5.0));
+
+        for (int i = 0; i < count; i++) {
+
+            double r = radius * Math.sqrt((i + 0.5) / count);
+            double phi = i * goldenAngle;
+
+            xs[i] = centerX + r*Math.cos(phi);
+            ys[i] = centerY + r*Math.sin(phi);
+        }
+
+        return new Ensemble(xs, ys, initT);
+    }
+
+    public int size() { return size; }
+
+    public double getT() { return t; }
+
+    public double getX(int i) { return xs[i]; }
+
+    public double getY(int i) { return ys[i]; }
+
+    // appends current positions of all members
+    public void snapshot(TrajectoryBuffer buffer) {
+
+        for (int i = 0; i < size; i++) { buffer.add(xs[i], ys[i], t); }
+    }
+
+    private void evaluate(CompiledExpression eF, CompiledExpression eG,
+                          double[] kF, double[] kG, double deltaT) {
+
+        eF.evaluateLanes(args, size, kF);
+        eG.evaluateLanes(args, size, kG);
+
+        for (int i = 0; i < size; i++) {
+
+            kF[i] *= deltaT;
+            kG[i] *= deltaT;
+        }
+    }
+
+    // same scheme as Logic.rungeKutter, lane by lane
+    public void rungeKuttaStep(CompiledExpression eF, CompiledExpression eG, double deltaT) {
+
+        System.arraycopy(xs, 0, argX, 0, size);
+        System.arraycopy(ys, 0, argY, 0, size);
+        Arrays.fill(argT, t);
+        evaluate(eF, eG, kF1, kG1, deltaT);
+
+        for (int i = 0; i < size; i++) {
+
+            argX[i] = xs[i] + kF1[i]/2;
+            argY[i] = ys[i] + kG1[i]/2;
+        }
+
+        Arrays.fill(argT, t + deltaT/2);
+        evaluate(eF, eG, kF2, kG2, deltaT);
+
+        for (int i = 0; i < size; i++) {
+
+            argX[i] = xs[i] + kF2[i]/2;
+            argY[i] = ys[i] + kG2[i]/2;
+        }
+
+        evaluate(eF, eG, kF3, kG3, deltaT);
+
+        for (int i = 0; i < size; i++) {
+
+            argX[i] = xs[i] + kF3[i];
+            argY[i] = ys[i] + kG3[i];
+        }
+
+        Arrays.fill(argT, t + deltaT);
+        evaluate(eF, eG, kF4, kG4, deltaT);
+
+        for (int i = 0; i < size; i++) {
+
+            xs[i] += (kF1[i] + 2.0*kF2[i] + 2.0*kF3[i] + kF4[i])/6.0;
+            ys[i] += (kG1[i] + 2.0*kG2[i] + 2.0*kG3[i] + kG4[i])/6.0;
+        }
+
+        t += deltaT;
+    }
+
+    public void eulerStep(CompiledExpression eF, CompiledExpression eG, double deltaT) {
+
+        System.arraycopy(xs, 0, argX, 0, size);
+        System.arraycopy(ys, 0, argY, 0, size);
+        Arrays.fill(argT, t);
+        evaluate(eF, eG, kF1, kG1, deltaT);
+
+        for (int i = 0; i < size; i++) {
+
+            xs[i] += kF1[i];
+            ys[i] += kG1[i];
+        }
+
+        t += deltaT;
+    }
+}
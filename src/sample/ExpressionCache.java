@@ -0,0 +1,74 @@
+package sample;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ *  Bounded LRU registry of compiled expressions keyed by
+ *  expression text and variable list, so that rebuilding
+ *  the same map (from any tab) parses it only once.
+ *
+ *  Cached instances are prototypes: get() hands out copies,
+ *  which share the compiled program but have own workspace.
+ */
+public class ExpressionCache {
+
+    private final int capacity;
+    private final LinkedHashMap<String, CompiledExpression> entries;
+    private long hits = 0, misses = 0;
+
+
+    public ExpressionCache(int capacity) {
+
+        this.capacity = capacity;
+        // access order turns LinkedHashMap into LRU list
+        this.entries = new LinkedHashMap<String, CompiledExpression>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CompiledExpression> eldest) {
+                return size() > ExpressionCache.this.capacity;
+            }
+        };
+    }
+
+    public CompiledExpression get(String text, String... varNames) {
+        return prototype(text, varNames).copy();
+    }
+
+    // cached instance itself, must not be used for evaluation;
+    // texts with syntax errors are compiled every time but never stored
+    synchronized CompiledExpression prototype(String text, String... varNames) {
+
+        String key = key(text, varNames);
+        CompiledExpression prototype = entries.get(key);
+
+        if (prototype == null) {
+
+            misses++;
+            prototype = CompiledExpression.compileUncached(text, varNames);
+            if (prototype.getSyntaxError() == null) { entries.put(key, prototype); }
+        }
+
+        else {
+            hits++;
+        }
+
+        return prototype;
+    }
+
+    // lookup that neither inserts nor counts, for validation while typing
+    synchronized CompiledExpression peek(String text, String... varNames) {
+        return entries.get(key(text, varNames));
+    }
+
+    private static String key(String text, String... varNames) {
+        return text + '\u0000' + String.join(",", varNames);
+    }
+
+    public synchronized int size() { return entries.size(); }
+
+    public synchronized long getHits() { return hits; }
+
+    public synchronized long getMisses() { return misses; }
+
+    public synchronized void clear() { entries.clear(); }
+}
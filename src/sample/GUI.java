@@ -7,6 +7,10 @@ import java.io.FileWriter;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Iterator;
+import java.util.concurrent.Flow;
+
+import javafx.application.Platform;
+import javafx.collections.FXCollections;
 
 import javafx.event.ActionEvent;
 import javafx.event.EventHandler;
@@ -17,10 +21,12 @@ import javafx.scene.chart.ScatterChart;
 import javafx.scene.chart.XYChart;
 import javafx.scene.control.Button;
 import javafx.scene.control.CheckBox;
+import javafx.scene.control.ComboBox;
 import javafx.scene.control.Label;
 import javafx.scene.control.TextField;
 import javafx.scene.control.Tab;
 import javafx.scene.control.TabPane;
+import javafx.scene.control.Tooltip;
 import javafx.scene.layout.GridPane;
 import javafx.scene.layout.StackPane;
 
@@ -29,8 +35,12 @@ import javafx.util.Pair;
 
 public class GUI {
 
+    // streamed runs keep only that many latest points on the chart
+    private static final int STREAM_WINDOW = 50000;
+
     private final XYChart.Series<Number, Number> series;
     private List<String> colours;
+    private TrajectoryStream currentStream;
 
     GUI() {
         series  = new XYChart.Series<>();
@@ -54,6 +64,86 @@ public class GUI {
         colours.add("-fx-background-color: #600225;");
     }
 
+    private void plotTrajectory(TrajectoryBuffer data) {
+
+        List<XYChart.Data<Number, Number>> chartData = new ArrayList<>(data.size());
+
+        for (int i = 0; i < data.size(); i++) {
+            chartData.add(new XYChart.Data<>(data.getX(i), data.getY(i)));
+        }
+
+        // single addAll fires one change event instead of one per point
+        series.getData().addAll(chartData);
+    }
+
+    // chunks are plotted on the FX thread, the next one is requested only after that
+    private void startStream(TrajectoryStream stream) {
+
+        stopStream();
+        currentStream = stream;
+
+        stream.subscribe(new Flow.Subscriber<TrajectoryBuffer>() {
+
+            private Flow.Subscription subscription;
+
+            public void onSubscribe(Flow.Subscription subscription) {
+
+                this.subscription = subscription;
+                subscription.request(1);
+            }
+
+            public void onNext(TrajectoryBuffer chunk) {
+
+                Platform.runLater(() -> {
+
+                    if (currentStream != stream) {
+
+                        subscription.cancel();
+                        return;
+                    }
+
+                    plotTrajectory(chunk);
+
+                    int excess = series.getData().size() - STREAM_WINDOW;
+                    if (excess > 0) { series.getData().remove(0, excess); }
+
+                    subscription.request(1);
+                });
+            }
+
+            public void onError(Throwable throwable) {
+                System.err.println("Trajectory stream failed: " + throwable);
+            }
+
+            public void onComplete() {
+                System.out.println("Trajectory stream finished");
+            }
+        });
+
+        stream.start();
+    }
+
+    private void stopStream() {
+
+        if (currentStream != null) {
+
+            currentStream.stop();
+            currentStream = null;
+        }
+    }
+
+    // highlights the field and explains the error while expression is typed
+    private void watchExpression(TextField field, String... varNames) {
+
+        field.textProperty().addListener((observable, oldText, newText) -> {
+
+            String error = newText.trim().isEmpty() ? null : CompiledExpression.validate(newText, varNames);
+
+            field.setStyle(error == null ? "" : "-fx-text-fill: #c90000;");
+            field.setTooltip(error == null ? null : new Tooltip(error));
+        });
+    }
+
     StackPane initializeChartArea() {
 
         final StackPane stackPane = new StackPane();
@@ -109,11 +199,13 @@ public class GUI {
         Label rungeDxdtLabel = new Label("dx/dt =  f(x, y, t) =");
         rungeGridPane.add(rungeDxdtLabel, 0,0);
         TextField rungeDxdtField = new TextField();
+        watchExpression(rungeDxdtField, "x", "y", "t");
         rungeGridPane.add(rungeDxdtField, 1, 0);
 
         Label rungeDydtLabel = new Label("dy/dt = g(x, y, t) =");
         rungeGridPane.add(rungeDydtLabel, 0,1);
         TextField rungeDydtField = new TextField();
+        watchExpression(rungeDydtField, "x", "y", "t");
         rungeGridPane.add(rungeDydtField, 1, 1);
 
         Label rungeInitXLabel = new Label("Initial x0 =");
@@ -141,29 +233,121 @@ public class GUI {
         TextField rungeIterField = new TextField();
         rungeGridPane.add(rungeIterField, 1, 6);
 
+        CheckBox rungeAdaptiveCheckBox = new CheckBox("Adaptive step (Dormand-Prince 5(4))");
+        rungeAdaptiveCheckBox.setSelected(false);
+        rungeGridPane.add(rungeAdaptiveCheckBox, 0, 7, 2, 1);
+
+        Label rungeAbsTolLabel = new Label("Absolute tolerance =");
+        rungeGridPane.add(rungeAbsTolLabel, 0, 8);
+        TextField rungeAbsTolField = new TextField("1e-6");
+        rungeGridPane.add(rungeAbsTolField, 1, 8);
+
+        Label rungeRelTolLabel = new Label("Relative tolerance =");
+        rungeGridPane.add(rungeRelTolLabel, 0, 9);
+        TextField rungeRelTolField = new TextField("1e-6");
+        rungeGridPane.add(rungeRelTolField, 1, 9);
+
+        Label rungeEnsembleLabel = new Label("Ensemble size =");
+        rungeGridPane.add(rungeEnsembleLabel, 0, 10);
+        TextField rungeEnsembleField = new TextField("1");
+        rungeGridPane.add(rungeEnsembleField, 1, 10);
+
+        Label rungeRadiusLabel = new Label("Ensemble radius =");
+        rungeGridPane.add(rungeRadiusLabel, 0, 11);
+        TextField rungeRadiusField = new TextField("0.01");
+        rungeGridPane.add(rungeRadiusField, 1, 11);
+
+        CheckBox rungeStreamCheckBox = new CheckBox("Stream (0 iterations = endless)");
+        rungeStreamCheckBox.setSelected(false);
+        rungeGridPane.add(rungeStreamCheckBox, 0, 12, 2, 1);
+
         Button rungeGoButton = new Button("Build");
-        rungeGridPane.add(rungeGoButton, 2, 7);
+        rungeGridPane.add(rungeGoButton, 2, 11);
+
+        Button rungeLyapunovButton = new Button("Lyapunov");
+        rungeGridPane.add(rungeLyapunovButton, 2, 10);
+
+        // plots the running estimate of the largest exponent against time
+        rungeLyapunovButton.setOnAction(new EventHandler<ActionEvent>() {
+
+            public void handle(ActionEvent event) {
+
+                stopStream();
+                series.getData().clear();
+                InitialData initData = new InitialData(Double.parseDouble(rungeInitXField.getText()),
+                                                        Double.parseDouble(rungeInitYField.getText()),
+                                                        Double.parseDouble(rungeInitTField.getText()),
+                                                        Double.parseDouble(rungeDeltaTField.getText()));
+
+                plotTrajectory(logic.lyapunovRungeKutter(rungeDxdtField.getText(),
+                                                         rungeDydtField.getText(),
+                                                         initData,
+                                                         Integer.parseInt(rungeIterField.getText())));
+            }
+        });
+
+        Button rungeStopButton = new Button("Stop");
+        rungeGridPane.add(rungeStopButton, 2, 12);
+        rungeStopButton.setOnAction(e -> stopStream());
 
         rungeGoButton.setOnAction(new EventHandler<ActionEvent>() {
 
             public void handle(ActionEvent event) {
 
+                stopStream();
                 series.getData().clear();
                 InitialData initData = new InitialData(Double.parseDouble(rungeInitXField.getText()),
                                                         Double.parseDouble(rungeInitYField.getText()),
                                                         Double.parseDouble(rungeInitTField.getText()),
                                                         Double.parseDouble(rungeDeltaTField.getText()));
 
-                List<Pair<Double, Double>> data = logic.rungeKutter(rungeDxdtField.getText(),
-                                                                    rungeDydtField.getText(),
-                                                                    initData,
-                                                                    Integer.parseInt(rungeIterField.getText()));
+                TrajectoryBuffer data;
+                int ensembleSize = Integer.parseInt(rungeEnsembleField.getText());
+                int iterationsNum = Integer.parseInt(rungeIterField.getText());
+
+                if (rungeStreamCheckBox.isSelected()) {
+
+                    startStream(logic.streamRungeKutter(rungeDxdtField.getText(),
+                                                        rungeDydtField.getText(),
+                                                        initData,
+                                                        iterationsNum));
+                    return;
+                }
+
+                // blob of initial conditions around (x0, y0), plotted ten times along the way
+                if (ensembleSize > 1) {
+
+                    Ensemble ensemble = Ensemble.disc(initData.getInitX(), initData.getInitY(), initData.getInitT(),
+                                                      Double.parseDouble(rungeRadiusField.getText()), ensembleSize);
+
+                    data = logic.ensembleRungeKutter(rungeDxdtField.getText(),
+                                                     rungeDydtField.getText(),
+                                                     ensemble,
+                                                     initData.getDeltaT(),
+                                                     iterationsNum,
+                                                     Math.max(1, iterationsNum/10));
+                }
+
+                // in adaptive mode delta t is the spacing of plotted points only
+                else if (rungeAdaptiveCheckBox.isSelected()) {
+
+                    data = logic.dormandPrince(rungeDxdtField.getText(),
+                                               rungeDydtField.getText(),
+                                               initData,
+                                               iterationsNum,
+                                               Double.parseDouble(rungeAbsTolField.getText()),
+                                               Double.parseDouble(rungeRelTolField.getText()));
+                }
 
-                for (Iterator<Pair<Double, Double>> iter = data.iterator(); iter.hasNext(); ) {
+                else {
 
-                    Pair<Double, Double> dot = iter.next();
-                    series.getData().add(new XYChart.Data(dot.getKey(), dot.getValue()));
+                    data = logic.rungeKutter(rungeDxdtField.getText(),
+                                             rungeDydtField.getText(),
+                                             initData,
+                                             iterationsNum);
                 }
+
+                if (data != null) { plotTrajectory(data); }
             }
         });
 
@@ -183,11 +367,13 @@ public class GUI {
         Label eulerDxdtLabel = new Label("dx/dt =  f(x, y, t) =");
         eulerGridPane.add(eulerDxdtLabel, 0,0);
         TextField eulerDxdtField = new TextField();
+        watchExpression(eulerDxdtField, "x", "y", "t");
         eulerGridPane.add(eulerDxdtField, 1, 0);
 
         Label eulerDydtLabel = new Label("dy/dt = g(x, y, t) =");
         eulerGridPane.add(eulerDydtLabel, 0,1);
         TextField eulerDydtField = new TextField();
+        watchExpression(eulerDydtField, "x", "y", "t");
         eulerGridPane.add(eulerDydtField, 1, 1);
 
         Label eulerInitXLabel = new Label("Initial x0 =");
@@ -215,29 +401,73 @@ public class GUI {
         TextField eulerIterField = new TextField();
         eulerGridPane.add(eulerIterField, 1, 6);
 
+        Label eulerEnsembleLabel = new Label("Ensemble size =");
+        eulerGridPane.add(eulerEnsembleLabel, 0, 7);
+        TextField eulerEnsembleField = new TextField("1");
+        eulerGridPane.add(eulerEnsembleField, 1, 7);
+
+        Label eulerRadiusLabel = new Label("Ensemble radius =");
+        eulerGridPane.add(eulerRadiusLabel, 0, 8);
+        TextField eulerRadiusField = new TextField("0.01");
+        eulerGridPane.add(eulerRadiusField, 1, 8);
+
+        CheckBox eulerStreamCheckBox = new CheckBox("Stream (0 iterations = endless)");
+        eulerStreamCheckBox.setSelected(false);
+        eulerGridPane.add(eulerStreamCheckBox, 0, 9, 2, 1);
+
         Button eulerGoButton = new Button("Build");
-        eulerGridPane.add(eulerGoButton, 2, 7);
+        eulerGridPane.add(eulerGoButton, 2, 8);
+
+        Button eulerStopButton = new Button("Stop");
+        eulerGridPane.add(eulerStopButton, 2, 9);
+        eulerStopButton.setOnAction(e -> stopStream());
 
         eulerGoButton.setOnAction(new EventHandler<ActionEvent>() {
 
             public void handle(ActionEvent event) {
 
+                stopStream();
                 series.getData().clear();
                 InitialData initData = new InitialData(Double.parseDouble(eulerInitXField.getText()),
                         Double.parseDouble(eulerInitYField.getText()),
                         Double.parseDouble(eulerInitTField.getText()),
                         Double.parseDouble(eulerDeltaTField.getText()));
 
-                List<Pair<Double, Double>> data = logic.eulerPolycurver(eulerDxdtField.getText(),
-                                                                        eulerDydtField.getText(),
-                                                                        initData,
-                                                                        Integer.parseInt(eulerIterField.getText()));
+                TrajectoryBuffer data;
+                int ensembleSize = Integer.parseInt(eulerEnsembleField.getText());
+                int iterationsNum = Integer.parseInt(eulerIterField.getText());
 
-                for (Iterator<Pair<Double, Double>> iter = data.iterator(); iter.hasNext(); ) {
+                if (eulerStreamCheckBox.isSelected()) {
 
-                    Pair<Double, Double> dot = iter.next();
-                    series.getData().add(new XYChart.Data(dot.getKey(), dot.getValue()));
+                    startStream(logic.streamEulerPolycurver(eulerDxdtField.getText(),
+                                                            eulerDydtField.getText(),
+                                                            initData,
+                                                            iterationsNum));
+                    return;
                 }
+
+                if (ensembleSize > 1) {
+
+                    Ensemble ensemble = Ensemble.disc(initData.getInitX(), initData.getInitY(), initData.getInitT(),
+                                                      Double.parseDouble(eulerRadiusField.getText()), ensembleSize);
+
+                    data = logic.ensembleEulerPolycurver(eulerDxdtField.getText(),
+                                                         eulerDydtField.getText(),
+                                                         ensemble,
+                                                         initData.getDeltaT(),
+                                                         iterationsNum,
+                                                         Math.max(1, iterationsNum/10));
+                }
+
+                else {
+
+                    data = logic.eulerPolycurver(eulerDxdtField.getText(),
+                                                 eulerDydtField.getText(),
+                                                 initData,
+                                                 iterationsNum);
+                }
+
+                if (data != null) { plotTrajectory(data); }
             }
         });
 
@@ -257,11 +487,13 @@ public class GUI {
         Label arbitXLabel = new Label("x is mapped to  f(x, y) =");
         arbitGridPane.add(arbitXLabel, 0,0);
         TextField arbitXField = new TextField("1 + y - 1.4*x*x");
+        watchExpression(arbitXField, "x", "y");
         arbitGridPane.add(arbitXField, 1, 0);
 
         Label arbitYLabel = new Label("y is mapped to g(x, y) =");
         arbitGridPane.add(arbitYLabel, 0,1);
         TextField arbitYField = new TextField("0.3*x");
+        watchExpression(arbitYField, "x", "y");
         arbitGridPane.add(arbitYField, 1, 1);
 
         Label arbitInitXLabel = new Label("Initial x0 =");
@@ -279,29 +511,65 @@ public class GUI {
         TextField arbitIterField = new TextField("5000");
         arbitGridPane.add(arbitIterField, 1, 4);
 
+        CheckBox arbitStreamCheckBox = new CheckBox("Stream (0 iterations = endless)");
+        arbitStreamCheckBox.setSelected(false);
+        arbitGridPane.add(arbitStreamCheckBox, 0, 6, 2, 1);
+
         Button arbitGoButton = new Button("Build");
         arbitGridPane.add(arbitGoButton, 2, 5);
 
-        arbitGoButton.setOnAction(new EventHandler<ActionEvent>() {
+        Button arbitLyapunovButton = new Button("Lyapunov");
+        arbitGridPane.add(arbitLyapunovButton, 2, 4);
+
+        // plots the running estimate of the largest exponent against iterations
+        arbitLyapunovButton.setOnAction(new EventHandler<ActionEvent>() {
 
             public void handle(ActionEvent event) {
 
+                stopStream();
                 series.getData().clear();
                 InitialData initData = new InitialData(Double.parseDouble(arbitInitXField.getText()),
                                                         Double.parseDouble(arbitInitYField.getText()),
                                                         0.0,
                                                         0.0);
 
-                List<Pair<Double, Double>> data = logic.arbitraryMapper(arbitXField.getText(),
-                                                                        arbitYField.getText(),
-                                                                        initData,
-                                                                        Integer.parseInt(arbitIterField.getText()));
+                plotTrajectory(logic.lyapunovMapper(arbitXField.getText(),
+                                                    arbitYField.getText(),
+                                                    initData,
+                                                    Integer.parseInt(arbitIterField.getText())));
+            }
+        });
 
-                for (Iterator<Pair<Double, Double>> iter = data.iterator(); iter.hasNext(); ) {
+        Button arbitStopButton = new Button("Stop");
+        arbitGridPane.add(arbitStopButton, 2, 6);
+        arbitStopButton.setOnAction(e -> stopStream());
 
-                    Pair<Double, Double> dot = iter.next();
-                    series.getData().add(new XYChart.Data(dot.getKey(), dot.getValue()));
+        arbitGoButton.setOnAction(new EventHandler<ActionEvent>() {
+
+            public void handle(ActionEvent event) {
+
+                stopStream();
+                series.getData().clear();
+                InitialData initData = new InitialData(Double.parseDouble(arbitInitXField.getText()),
+                                                        Double.parseDouble(arbitInitYField.getText()),
+                                                        0.0,
+                                                        0.0);
+
+                if (arbitStreamCheckBox.isSelected()) {
+
+                    startStream(logic.streamArbitraryMapper(arbitXField.getText(),
+                                                            arbitYField.getText(),
+                                                            initData,
+                                                            Integer.parseInt(arbitIterField.getText())));
+                    return;
                 }
+
+                TrajectoryBuffer data = logic.arbitraryMapper(arbitXField.getText(),
+                                                              arbitYField.getText(),
+                                                              initData,
+                                                              Integer.parseInt(arbitIterField.getText()));
+
+                plotTrajectory(data);
             }
         });
 
@@ -311,6 +579,121 @@ public class GUI {
 
         //////////////////////////////
 
+        final GridPane systemGridPane = new GridPane();
+
+        systemGridPane.setAlignment(Pos.TOP_LEFT);
+        systemGridPane.setHgap(5);
+        systemGridPane.setVgap(10);
+        systemGridPane.setPadding(new Insets(5, 5, 5, 5));
+
+        Label systemVarsLabel = new Label("Variables (comma separated) =");
+        systemGridPane.add(systemVarsLabel, 0, 0);
+        TextField systemVarsField = new TextField("x, y, z");
+        systemGridPane.add(systemVarsField, 1, 0);
+
+        Label systemExprsLabel = new Label("Right-hand sides (';' separated) =");
+        systemGridPane.add(systemExprsLabel, 0, 1);
+        TextField systemExprsField = new TextField("10*(y-x); x*(28-z)-y; x*y-8/3*z");
+        systemGridPane.add(systemExprsField, 1, 1);
+
+        Label systemInitLabel = new Label("Initial state (comma separated) =");
+        systemGridPane.add(systemInitLabel, 0, 2);
+        TextField systemInitField = new TextField("1.0, 1.0, 1.0");
+        systemGridPane.add(systemInitField, 1, 2);
+
+        Label systemInitTLabel = new Label("Initial t0 =");
+        systemGridPane.add(systemInitTLabel, 0, 3);
+        TextField systemInitTField = new TextField("0.0");
+        systemGridPane.add(systemInitTField, 1, 3);
+
+        Label systemDeltaTLabel = new Label("Increment delta t =");
+        systemGridPane.add(systemDeltaTLabel, 0, 4);
+        TextField systemDeltaTField = new TextField("0.01");
+        systemGridPane.add(systemDeltaTField, 1, 4);
+
+        Label systemIterLabel = new Label("Number of iterations =");
+        systemGridPane.add(systemIterLabel, 0, 5);
+        TextField systemIterField = new TextField("5000");
+        systemGridPane.add(systemIterField, 1, 5);
+
+        Label systemPlotLabel = new Label("Plotted components =");
+        systemGridPane.add(systemPlotLabel, 0, 6);
+        TextField systemPlotField = new TextField("0, 2");
+        systemGridPane.add(systemPlotField, 1, 6);
+
+        CheckBox systemDiscreteCheckBox = new CheckBox("Discrete map");
+        systemDiscreteCheckBox.setSelected(false);
+        systemGridPane.add(systemDiscreteCheckBox, 0, 7);
+
+        Button systemGoButton = new Button("Build");
+        systemGridPane.add(systemGoButton, 2, 7);
+
+        systemGoButton.setOnAction(new EventHandler<ActionEvent>() {
+
+            public void handle(ActionEvent event) {
+
+                stopStream();
+                series.getData().clear();
+
+                String[] varNames = systemVarsField.getText().split(",");
+                String[] expressions = systemExprsField.getText().split(";");
+                String[] initValues = systemInitField.getText().split(",");
+                String[] plotted = systemPlotField.getText().split(",");
+                double[] initState = new double[initValues.length];
+
+                for (int i = 0; i < varNames.length; i++) { varNames[i] = varNames[i].trim(); }
+                for (int i = 0; i < initValues.length; i++) { initState[i] = Double.parseDouble(initValues[i].trim()); }
+
+                InitialData initData = new InitialData(initState,
+                                                       Double.parseDouble(systemInitTField.getText()),
+                                                       Double.parseDouble(systemDeltaTField.getText()));
+
+                TrajectoryBuffer data = logic.systemBuilder(varNames, expressions, initData,
+                                                            Integer.parseInt(systemIterField.getText()),
+                                                            Integer.parseInt(plotted[0].trim()),
+                                                            Integer.parseInt(plotted[plotted.length-1].trim()),
+                                                            systemDiscreteCheckBox.isSelected());
+
+                if (data != null) { plotTrajectory(data); }
+            }
+        });
+
+        Button systemLyapunovButton = new Button("Lyapunov");
+        systemGridPane.add(systemLyapunovButton, 2, 6);
+
+        systemLyapunovButton.setOnAction(new EventHandler<ActionEvent>() {
+
+            public void handle(ActionEvent event) {
+
+                stopStream();
+                series.getData().clear();
+
+                String[] varNames = systemVarsField.getText().split(",");
+                String[] expressions = systemExprsField.getText().split(";");
+                String[] initValues = systemInitField.getText().split(",");
+                double[] initState = new double[initValues.length];
+
+                for (int i = 0; i < varNames.length; i++) { varNames[i] = varNames[i].trim(); }
+                for (int i = 0; i < initValues.length; i++) { initState[i] = Double.parseDouble(initValues[i].trim()); }
+
+                InitialData initData = new InitialData(initState,
+                                                       Double.parseDouble(systemInitTField.getText()),
+                                                       Double.parseDouble(systemDeltaTField.getText()));
+
+                TrajectoryBuffer data = logic.lyapunovBuilder(varNames, expressions, initData,
+                                                              Integer.parseInt(systemIterField.getText()),
+                                                              systemDiscreteCheckBox.isSelected());
+
+                if (data != null) { plotTrajectory(data); }
+            }
+        });
+
+        Tab tabSystem = new Tab();
+        tabSystem.setText("N-dim System");
+        tabSystem.setContent(systemGridPane);
+
+        //////////////////////////////
+
         final GridPane crSetGridPane = new GridPane();
 
         crSetGridPane.setAlignment(Pos.TOP_LEFT);
@@ -321,11 +704,13 @@ public class GUI {
         Label crSetXLabel = new Label("x is mapped to  f(x, y) =");
         crSetGridPane.add(crSetXLabel, 0,0);
         TextField crSetXField = new TextField("1 + y - 1.4*x*x");
+        watchExpression(crSetXField, "x", "y");
         crSetGridPane.add(crSetXField, 1, 0);
 
         Label crSetYLabel = new Label("y is mapped to g(x, y) =");
         crSetGridPane.add(crSetYLabel, 0,1);
         TextField crSetYField = new TextField("0.3*x");
+        watchExpression(crSetYField, "x", "y");
         crSetGridPane.add(crSetYField, 1, 1);
 
         Label crSetAreaXInitLabel = new Label("Area start  x =");
@@ -364,10 +749,46 @@ public class GUI {
         Button crSetGoButton = new Button("Build");
         crSetGridPane.add(crSetGoButton, 2, 8);
 
+        Label crSetSamplingLabel = new Label("Sampling =");
+        crSetGridPane.add(crSetSamplingLabel, 0, 9);
+        ComboBox<CellSampler.Strategy> crSetSamplingBox =
+                new ComboBox<>(FXCollections.observableArrayList(CellSampler.Strategy.values()));
+        crSetSamplingBox.setValue(CellSampler.Strategy.RANDOM);
+        crSetGridPane.add(crSetSamplingBox, 1, 9);
+
+        // one value for all levels or comma-separated values for levels 0, 1, ...
+        Label crSetSamplesLabel = new Label("Samples by cell =");
+        crSetGridPane.add(crSetSamplesLabel, 0, 10);
+        TextField crSetSamplesField = new TextField("100");
+        crSetGridPane.add(crSetSamplesField, 1, 10);
+
+        // empty seed means a new one on every build
+        Label crSetSeedLabel = new Label("Seed =");
+        crSetGridPane.add(crSetSeedLabel, 0, 11);
+        TextField crSetSeedField = new TextField("");
+        crSetGridPane.add(crSetSeedField, 1, 11);
+
+        // rigorous outer approximation instead of sampling
+        CheckBox crSetIntervalCheckBox = new CheckBox("Interval image");
+        crSetIntervalCheckBox.setSelected(false);
+        crSetGridPane.add(crSetIntervalCheckBox, 0, 12);
+
+        Label crSetSplitsLabel = new Label("Interval splits =");
+        crSetGridPane.add(crSetSplitsLabel, 0, 13);
+        TextField crSetSplitsField = new TextField("0");
+        crSetGridPane.add(crSetSplitsField, 1, 13);
+
+        // empty means fixed counts, otherwise samples by cell become upper bounds
+        Label crSetAdaptiveLabel = new Label("Adaptive min =");
+        crSetGridPane.add(crSetAdaptiveLabel, 0, 14);
+        TextField crSetAdaptiveField = new TextField("");
+        crSetGridPane.add(crSetAdaptiveField, 1, 14);
+
         crSetGoButton.setOnAction(new EventHandler<ActionEvent>() {
 
             public void handle(ActionEvent event) {
 
+                stopStream();
                 series.getData().clear();
 
                 Double startX  = Double.parseDouble(crSetAreaXInitField.getText());
@@ -377,7 +798,33 @@ public class GUI {
 
                 CellularArea cArea = new CellularArea(startX, startY,
                                                         finishX, finishY,
-                                                    40, 40, new ArrayList<>());
+                                                    40, 40);
+
+                String[] samplesText = crSetSamplesField.getText().split(",");
+                int[] samplesByLevel = new int[samplesText.length];
+
+                for (int i = 0; i < samplesText.length; i++) {
+                    samplesByLevel[i] = Integer.parseInt(samplesText[i].trim());
+                }
+
+                String seedText = crSetSeedField.getText().trim();
+                long seed = seedText.isEmpty() ? System.nanoTime() : Long.parseLong(seedText);
+
+                CellSampler sampler = new CellSampler(crSetSamplingBox.getValue(), seed, samplesByLevel);
+                String adaptiveText = crSetAdaptiveField.getText().trim();
+
+                if (!adaptiveText.isEmpty()) {
+                    sampler = sampler.adaptive(Integer.parseInt(adaptiveText));
+                }
+
+                cArea.setSampler(sampler);
+                System.out.println("CR-set sampling seed " + seed);
+
+                if (crSetIntervalCheckBox.isSelected()) {
+
+                    cArea.setImageMode(CellularArea.ImageMode.INTERVAL);
+                    cArea.setIntervalSplits(Integer.parseInt(crSetSplitsField.getText()));
+                }
 
                 long startTime, endTime;
                 boolean xmcDet = xmcDetectionCheckBox.isSelected();
@@ -463,8 +910,144 @@ public class GUI {
 
         //////////////////////////////
 
+        final GridPane basinGridPane = new GridPane();
+
+        basinGridPane.setAlignment(Pos.TOP_LEFT);
+        basinGridPane.setHgap(5);
+        basinGridPane.setVgap(10);
+        basinGridPane.setPadding(new Insets(5, 5, 5, 5));
+
+        Label basinXLabel = new Label("x is mapped to  f(x, y) =");
+        basinGridPane.add(basinXLabel, 0,0);
+        TextField basinXField = new TextField("1 + y - 1.4*x*x");
+        watchExpression(basinXField, "x", "y");
+        basinGridPane.add(basinXField, 1, 0);
+
+        Label basinYLabel = new Label("y is mapped to g(x, y) =");
+        basinGridPane.add(basinYLabel, 0,1);
+        TextField basinYField = new TextField("0.3*x");
+        watchExpression(basinYField, "x", "y");
+        basinGridPane.add(basinYField, 1, 1);
+
+        Label basinAreaXInitLabel = new Label("Area start  x =");
+        basinGridPane.add(basinAreaXInitLabel, 0, 2);
+        TextField basinAreaXInitField = new TextField("-2.0");
+        basinGridPane.add(basinAreaXInitField, 1, 2);
+
+        Label basinAreaYInitLabel = new Label("Area start  y =");
+        basinGridPane.add(basinAreaYInitLabel, 0, 3);
+        TextField basinAreaYInitField = new TextField("-2.0");
+        basinGridPane.add(basinAreaYInitField, 1, 3);
+
+        Label basinAreaXFinLabel = new Label("Area finish x =");
+        basinGridPane.add(basinAreaXFinLabel, 0, 4);
+        TextField basinAreaXFinField = new TextField("2.0");
+        basinGridPane.add(basinAreaXFinField, 1, 4);
+
+        Label basinAreaYFinLabel = new Label("Area finish y =");
+        basinGridPane.add(basinAreaYFinLabel, 0, 5);
+        TextField basinAreaYFinField = new TextField("2.0");
+        basinGridPane.add(basinAreaYFinField, 1, 5);
+
+        Label basinCellsLabel = new Label("Grid points per side =");
+        basinGridPane.add(basinCellsLabel, 0, 6);
+        TextField basinCellsField = new TextField("500");
+        basinGridPane.add(basinCellsField, 1, 6);
+
+        Label basinIterLabel = new Label("Max iterations =");
+        basinGridPane.add(basinIterLabel, 0, 7);
+        TextField basinIterField = new TextField("200");
+        basinGridPane.add(basinIterField, 1, 7);
+
+        Label basinRadiusLabel = new Label("Escape radius =");
+        basinGridPane.add(basinRadiusLabel, 0, 8);
+        TextField basinRadiusField = new TextField("10.0");
+        basinGridPane.add(basinRadiusField, 1, 8);
+
+        CheckBox basinAttractorCheckBox = new CheckBox("Attractors");
+        basinAttractorCheckBox.setSelected(false);
+        basinGridPane.add(basinAttractorCheckBox, 0, 9);
+
+        Button basinGoButton = new Button("Build");
+        basinGridPane.add(basinGoButton, 2, 9);
+
+        basinGoButton.setOnAction(new EventHandler<ActionEvent>() {
+
+            public void handle(ActionEvent event) {
+
+                stopStream();
+                series.getData().clear();
+
+                int cells = Integer.parseInt(basinCellsField.getText());
+                int maxIter = Integer.parseInt(basinIterField.getText());
+                BasinGrid.Mode mode = basinAttractorCheckBox.isSelected() ?
+                        BasinGrid.Mode.ATTRACTOR : BasinGrid.Mode.ESCAPE_TIME;
+
+                long startTime = System.nanoTime();
+
+                BasinGrid grid = logic.basinBuilder(basinXField.getText(), basinYField.getText(),
+                                                    Double.parseDouble(basinAreaXInitField.getText()),
+                                                    Double.parseDouble(basinAreaYInitField.getText()),
+                                                    Double.parseDouble(basinAreaXFinField.getText()),
+                                                    Double.parseDouble(basinAreaYFinField.getText()),
+                                                    cells, cells, maxIter,
+                                                    Double.parseDouble(basinRadiusField.getText()),
+                                                    mode);
+
+                long endTime = System.nanoTime();
+                System.out.println("Basins built in " + ((endTime-startTime)/1000000) + " ms");
+
+                if (grid == null) { return; }
+
+                try {
+                    FileWriter fileWriter = new FileWriter("data/basins.csv");
+                    PrintWriter printWriter = new PrintWriter(fileWriter);
+
+                    grid.writeCsv(printWriter);
+                    printWriter.close();
+                }
+
+                catch (IOException e) {
+                    System.err.println("IOException while working with CSV");
+                }
+
+                // the chart can't take millions of nodes, so only every stride-th point is shown
+                int stride = Math.max(1, (int) Math.ceil(cells / 100.0));
+                String nodeStyle = new String("-fx-background-radius: 1px ; -fx-padding: 1px ; ");
+
+                for (int j = 0; j < cells; j += stride) {
+                    for (int i = 0; i < cells; i += stride) {
+
+                        int cell = j*cells + i;
+                        int value = grid.getValue(cell);
+                        int colourIndex;
+
+                        if (mode == BasinGrid.Mode.ESCAPE_TIME) {
+                            // logarithmic palette of escape times, bounded orbits in black
+                            colourIndex = (value == BasinGrid.NOT_ESCAPED) ? 0 :
+                                    1 + (int) (Math.log(value) / Math.log(maxIter + 1) * (colours.size()-2));
+                        }
+
+                        else {
+                            colourIndex = (value < 0) ? -value - 1 : 2 + value % (colours.size()-2);
+                        }
+
+                        XYChart.Data chartElem = new XYChart.Data(grid.getCellX(cell), grid.getCellY(cell));
+                        series.getData().add(chartElem);
+                        chartElem.getNode().setStyle(nodeStyle + colours.get(colourIndex));
+                    }
+                }
+            }
+        });
+
+        Tab tabBasins = new Tab();
+        tabBasins.setText("Basins");
+        tabBasins.setContent(basinGridPane);
+
+        //////////////////////////////
+
         tabPane.getSelectionModel().select(0);
-        tabPane.getTabs().addAll(tabRunge, tabEulerCurves, tabArbitMapping, tabCrSet);
+        tabPane.getTabs().addAll(tabRunge, tabEulerCurves, tabArbitMapping, tabSystem, tabCrSet, tabBasins);
 
         root.getChildren().add(tabPane);
 
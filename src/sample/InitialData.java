@@ -6,6 +6,8 @@ public class InitialData {
     private Double initY;
     private Double initT;
     private Double deltaT;
+    // for systems of arbitrary dimension, x and y mirror its first components
+    private double[] initState;
 
     public InitialData(Double initX, Double initY, Double initT, Double deltaT) {
         this.initX = initX;
@@ -14,12 +16,25 @@ public class InitialData {
         this.deltaT = deltaT;
     }
 
+    public InitialData(double[] initState, Double initT, Double deltaT) {
+        this.initState = initState.clone();
+        this.initX = initState.length > 0 ? initState[0] : 0.0;
+        this.initY = initState.length > 1 ? initState[1] : 0.0;
+        this.initT = initT;
+        this.deltaT = deltaT;
+    }
+
+    public double[] getInitState() {
+        return initState != null ? initState.clone() : new double[] {initX, initY};
+    }
+
     public Double getInitX() {
         return initX;
     }
 
     public void setInitX(Double initX) {
         this.initX = initX;
+        if (initState != null && initState.length > 0) { initState[0] = initX; }
     }
 
     public Double getInitY() {
@@ -28,6 +43,7 @@ public class InitialData {
 
     public void setInitY(Double initY) {
         this.initY = initY;
+        if (initState != null && initState.length > 1) { initState[1] = initY; }
     }
 
     public Double getInitT() {
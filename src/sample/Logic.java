@@ -3,70 +3,288 @@ package sample;
 import java.util.*;
 
 import javafx.util.Pair;
-import org.mariuszgromada.math.mxparser.Argument;
-import org.mariuszgromada.math.mxparser.Expression;
 import static java.lang.Math.cos;
 
 public class Logic {
 
+    // streaming: points per published chunk and chunks buffered ahead of the subscriber
+    private static final int STREAM_CHUNK_SIZE = 4096;
+    private static final int STREAM_BUFFER_CHUNKS = 16;
+    // steps between Gram-Schmidt renormalizations of tangent vectors
+    private static final int LYAPUNOV_RENORM_EVERY = 10;
 
-    public List<Pair<Double, Double>> rungeKutter(String f,
-                                                  String g,
-                                                  InitialData initData,
-                                                  Integer iterationsNum) {
+    // advances state {x, y, t} by one classical RK4 step, vars is a scratch array of 3
+    static void rungeKuttaStep(CompiledExpression eF, CompiledExpression eG,
+                               double[] vars, double[] state, double deltaT) {
+
+        double x = state[0], y = state[1], t = state[2];
+
+        vars[0] = x;
+        vars[1] = y;
+        vars[2] = t;
+
+        double kF1 = eF.evaluate(vars)*deltaT;
+        double kG1 = eG.evaluate(vars)*deltaT;
+
+        vars[0] = x + kF1/2;
+        vars[1] = y + kG1/2;
+        vars[2] = t + deltaT/2;
+
+        double kF2 = eF.evaluate(vars)*deltaT;
+        double kG2 = eG.evaluate(vars)*deltaT;
+
+        vars[0] = x + kF2/2;
+        vars[1] = y + kG2/2;
+        // sic, we don't need to modify t here
+
+        double kF3 = eF.evaluate(vars)*deltaT;
+        double kG3 = eG.evaluate(vars)*deltaT;
 
-        List<Pair<Double, Double>> result = new ArrayList<>();
+        vars[0] = x + kF3;
+        vars[1] = y + kG3;
+        vars[2] = t + deltaT;
 
-        Double x = initData.getInitX();
-        Double y = initData.getInitY();
-        Double t = initData.getInitT();
-        Double deltaT = initData.getDeltaT();
+        double kF4 = eF.evaluate(vars)*deltaT;
+        double kG4 = eG.evaluate(vars)*deltaT;
 
-        Argument xArg = new Argument("x", x);
-        Argument yArg = new Argument("y", y);
-        Argument tArg = new Argument("t", t);
+        state[0] = x + (kF1 + 2.0*kF2 + 2.0*kF3 + kF4)/6.0;
+        state[1] = y + (kG1 + 2.0*kG2 + 2.0*kG3 + kG4)/6.0;
+        state[2] = t + deltaT;
+    }
+
+    // advances state {x, y, t} by one explicit Euler step
+    static void eulerStep(CompiledExpression eF, CompiledExpression eG,
+                          double[] state, double deltaT) {
 
-        Expression eF = new Expression(f, xArg, yArg, tArg);
-        Expression eG = new Expression(g, xArg, yArg, tArg);
+        double newX = state[0] + eF.evaluate(state) * deltaT;
+        double newY = state[1] + eG.evaluate(state) * deltaT;
 
-        result.add(new Pair<Double, Double>(x, y));
+        state[0] = newX;
+        state[1] = newY;
+        state[2] = state[2] + deltaT;
+    }
 
-        for (Integer i = 0; i < iterationsNum; i++) {
+    // maps state {x, y} to {f(x, y), g(x, y)}
+    static void mapStep(CompiledExpression eF, CompiledExpression eG, double[] state) {
 
-            Double kF1 = eF.calculate()*deltaT;
-            Double kG1 = eG.calculate()*deltaT;
+        double newX = eF.evaluate(state);
+        double newY = eG.evaluate(state);
+
+        state[0] = newX;
+        state[1] = newY;
+    }
 
-            xArg.setArgumentValue(x + kF1/2);
-            yArg.setArgumentValue(y + kG1/2);
-            tArg.setArgumentValue(t + deltaT/2);
+    public TrajectoryBuffer rungeKutter(String f,
+                                        String g,
+                                        InitialData initData,
+                                        int iterationsNum) {
 
-            Double kF2 = eF.calculate()*deltaT;
-            Double kG2 = eG.calculate()*deltaT;
+        TrajectoryBuffer result = new TrajectoryBuffer(iterationsNum+1, true);
 
-            xArg.setArgumentValue(x + kF2/2);
-            yArg.setArgumentValue(y + kG2/2);
-            // sic, we don't need to modify tArg here
+        double x = initData.getInitX();
+        double y = initData.getInitY();
+        double t = initData.getInitT();
+        double deltaT = initData.getDeltaT();
 
-            Double kF3 = eF.calculate()*deltaT;
-            Double kG3 = eG.calculate()*deltaT;
+        CompiledExpression eF = CompiledExpression.compile(f, "x", "y", "t");
+        CompiledExpression eG = CompiledExpression.compile(g, "x", "y", "t");
+        double[] vars = new double[] {x, y, t};
 
-            xArg.setArgumentValue(x + kF3);
-            yArg.setArgumentValue(y + kG3);
-            tArg.setArgumentValue(t + deltaT);
+        double[] state = new double[] {x, y, t};
 
-            Double kF4 = eF.calculate()*deltaT;
-            Double kG4 = eG.calculate()*deltaT;
+        result.add(x, y, t);
 
-            x = x + (kF1 + 2.0*kF2 + 2.0*kF3 + kF4)/6.0;
-            y = y + (kG1 + 2.0*kG2 + 2.0*kG3 + kG4)/6.0;
-            t = t + deltaT;
+        for (int i = 0; i < iterationsNum; i++) {
 
-            result.add(new Pair<Double, Double>(x, y));
-            xArg.setArgumentValue(x);
-            yArg.setArgumentValue(y);
-            tArg.setArgumentValue(t);
+            rungeKuttaStep(eF, eG, vars, state, deltaT);
+            result.add(state[0], state[1], state[2]);
+        }
+
+        return result;
     }
 
+    // Dormand-Prince 5(4) tableau, see Hairer, Norsett, Wanner, "Solving ODE I", II.5
+    private static final double
+            DP_C2 = 1.0/5, DP_C3 = 3.0/10, DP_C4 = 4.0/5, DP_C5 = 8.0/9,
+            DP_A21 = 1.0/5,
+            DP_A31 = 3.0/40, DP_A32 = 9.0/40,
+            DP_A41 = 44.0/45, DP_A42 = -56.0/15, DP_A43 = 32.0/9,
+            DP_A51 = 19372.0/6561, DP_A52 = -25360.0/2187, DP_A53 = 64448.0/6561, DP_A54 = -212.0/729,
+            DP_A61 = 9017.0/3168, DP_A62 = -355.0/33, DP_A63 = 46732.0/5247, DP_A64 = 49.0/176,
+            DP_A65 = -5103.0/18656,
+            DP_A71 = 35.0/384, DP_A73 = 500.0/1113, DP_A74 = 125.0/192, DP_A75 = -2187.0/6784,
+            DP_A76 = 11.0/84,
+            // differences between 5th and embedded 4th order weights
+            DP_E1 = 71.0/57600, DP_E3 = -71.0/16695, DP_E4 = 71.0/1920, DP_E5 = -17253.0/339200,
+            DP_E6 = 22.0/525, DP_E7 = -1.0/40,
+            // continuous extension of order 4
+            DP_D1 = -12715105075.0/11282082432.0, DP_D3 = 87487479700.0/32700410799.0,
+            DP_D4 = -10690763975.0/1880347072, DP_D5 = 701980252875.0/199316789632.0,
+            DP_D6 = -1453857185.0/822651844, DP_D7 = 69997945.0/29380423;
+
+    private static void evaluateRhs(CompiledExpression eF, CompiledExpression eG, double[] vars,
+                                    double x, double y, double t, double[] k) {
+
+        vars[0] = x;
+        vars[1] = y;
+        vars[2] = t;
+
+        k[0] = eF.evaluate(vars);
+        k[1] = eG.evaluate(vars);
+    }
+
+    /**
+     *  Adaptive Dormand-Prince 5(4) integration from initT
+     *  up to initT + iterationsNum*deltaT. The step size is chosen
+     *  by the embedded error estimate, deltaT is only the spacing
+     *  of returned points, which are taken from the dense output.
+     *
+     * @param absTol absolute tolerance per component
+     * @param relTol relative tolerance per component
+     */
+    public TrajectoryBuffer dormandPrince(String f,
+                                          String g,
+                                          InitialData initData,
+                                          int iterationsNum,
+                                          double absTol,
+                                          double relTol) {
+
+        if (absTol <= 0 && relTol <= 0) {
+
+            System.err.println("dormandPrince: at least one of tolerances must be positive");
+            return null;
+        }
+
+        TrajectoryBuffer result = new TrajectoryBuffer(iterationsNum+1, true);
+
+        double x = initData.getInitX();
+        double y = initData.getInitY();
+        double t = initData.getInitT();
+        double deltaT = initData.getDeltaT();
+        double finishT = t + iterationsNum*deltaT;
+
+        CompiledExpression eF = CompiledExpression.compile(f, "x", "y", "t");
+        CompiledExpression eG = CompiledExpression.compile(g, "x", "y", "t");
+        double[] vars = new double[3];
+
+        double[] k1 = new double[2], k2 = new double[2], k3 = new double[2], k4 = new double[2],
+                 k5 = new double[2], k6 = new double[2], k7 = new double[2];
+
+        result.add(x, y, t);
+
+        if (iterationsNum <= 0 || deltaT == 0) { return result; }
+
+        double direction = Math.signum(deltaT);
+        double h = deltaT;
+        int nextOutput = 1;
+        long accepted = 0, rejected = 0, rhsEvaluations = 1;
+        boolean rejectedLast = false;
+
+        evaluateRhs(eF, eG, vars, x, y, t, k1);
+
+        while (nextOutput <= iterationsNum) {
+
+            // do not step past the end of the interval
+            if ((t + h - finishT)*direction > 0) { h = finishT - t; }
+
+            if (Math.abs(h) < 1e-14*Math.max(1.0, Math.abs(t))) {
+
+                System.err.println("dormandPrince: step size underflow at t = " + t);
+                break;
+            }
+
+            evaluateRhs(eF, eG, vars,
+                    x + h*DP_A21*k1[0],
+                    y + h*DP_A21*k1[1],
+                    t + DP_C2*h, k2);
+            evaluateRhs(eF, eG, vars,
+                    x + h*(DP_A31*k1[0] + DP_A32*k2[0]),
+                    y + h*(DP_A31*k1[1] + DP_A32*k2[1]),
+                    t + DP_C3*h, k3);
+            evaluateRhs(eF, eG, vars,
+                    x + h*(DP_A41*k1[0] + DP_A42*k2[0] + DP_A43*k3[0]),
+                    y + h*(DP_A41*k1[1] + DP_A42*k2[1] + DP_A43*k3[1]),
+                    t + DP_C4*h, k4);
+            evaluateRhs(eF, eG, vars,
+                    x + h*(DP_A51*k1[0] + DP_A52*k2[0] + DP_A53*k3[0] + DP_A54*k4[0]),
+                    y + h*(DP_A51*k1[1] + DP_A52*k2[1] + DP_A53*k3[1] + DP_A54*k4[1]),
+                    t + DP_C5*h, k5);
+            evaluateRhs(eF, eG, vars,
+                    x + h*(DP_A61*k1[0] + DP_A62*k2[0] + DP_A63*k3[0] + DP_A64*k4[0] + DP_A65*k5[0]),
+                    y + h*(DP_A61*k1[1] + DP_A62*k2[1] + DP_A63*k3[1] + DP_A64*k4[1] + DP_A65*k5[1]),
+                    t + h, k6);
+
+            double newX = x + h*(DP_A71*k1[0] + DP_A73*k3[0] + DP_A74*k4[0] + DP_A75*k5[0] + DP_A76*k6[0]);
+            double newY = y + h*(DP_A71*k1[1] + DP_A73*k3[1] + DP_A74*k4[1] + DP_A75*k5[1] + DP_A76*k6[1]);
+
+            // FSAL: k7 becomes k1 of the next step
+            evaluateRhs(eF, eG, vars, newX, newY, t + h, k7);
+            rhsEvaluations += 6;
+
+            double errX = h*(DP_E1*k1[0] + DP_E3*k3[0] + DP_E4*k4[0] + DP_E5*k5[0] + DP_E6*k6[0] + DP_E7*k7[0]);
+            double errY = h*(DP_E1*k1[1] + DP_E3*k3[1] + DP_E4*k4[1] + DP_E5*k5[1] + DP_E6*k6[1] + DP_E7*k7[1]);
+            double scX = absTol + relTol*Math.max(Math.abs(x), Math.abs(newX));
+            double scY = absTol + relTol*Math.max(Math.abs(y), Math.abs(newY));
+            double err = Math.sqrt(((errX/scX)*(errX/scX) + (errY/scY)*(errY/scY))/2);
+
+            if (Double.isNaN(err)) {
+
+                System.err.println("dormandPrince: solution is not finite at t = " + t);
+                break;
+            }
+
+            if (err > 1.0) {
+
+                rejected++;
+                rejectedLast = true;
+                h *= Math.max(0.2, 0.9*Math.pow(err, -0.2));
+                continue;
+            }
+
+            accepted++;
+            double newT = t + h;
+
+            // dense output for every requested point inside [t, newT]
+            if ((initData.getInitT() + nextOutput*deltaT - newT)*direction <= 0) {
+
+                double diffX = newX - x, diffY = newY - y;
+                double bsplX = h*k1[0] - diffX, bsplY = h*k1[1] - diffY;
+                double r4X = diffX - h*k7[0] - bsplX, r4Y = diffY - h*k7[1] - bsplY;
+                double r5X = h*(DP_D1*k1[0] + DP_D3*k3[0] + DP_D4*k4[0] + DP_D5*k5[0] + DP_D6*k6[0] + DP_D7*k7[0]);
+                double r5Y = h*(DP_D1*k1[1] + DP_D3*k3[1] + DP_D4*k4[1] + DP_D5*k5[1] + DP_D6*k6[1] + DP_D7*k7[1]);
+
+                while (nextOutput <= iterationsNum) {
+
+                    double outT = initData.getInitT() + nextOutput*deltaT;
+
+                    if ((outT - newT)*direction > 0) { break; }
+
+                    double theta = (outT - t)/h;
+                    double theta1 = 1.0 - theta;
+
+                    result.add(x + theta*(diffX + theta1*(bsplX + theta*(r4X + theta1*r5X))),
+                               y + theta*(diffY + theta1*(bsplY + theta*(r4Y + theta1*r5Y))),
+                               outT);
+                    nextOutput++;
+                }
+            }
+
+            x = newX;
+            y = newY;
+            t = newT;
+
+            double[] swap = k1;
+            k1 = k7;
+            k7 = swap;
+
+            // right after a rejection the step may not grow (Hairer), or it oscillates
+            h *= Math.min(rejectedLast ? 1.0 : 10.0, Math.max(0.2, 0.9*Math.pow(Math.max(err, 1e-10), -0.2)));
+            rejectedLast = false;
+        }
+
+        System.out.println("dormandPrince: " + accepted + " steps accepted, " + rejected +
+                " rejected, " + rhsEvaluations + " right-hand side evaluations");
+
         return result;
     }
 
@@ -80,73 +298,317 @@ public class Logic {
 
 
 
-    public List<Pair<Double, Double>> eulerPolycurver(String f,
-                                                      String g,
-                                                      InitialData initData,
-                                                      Integer iterationsNum) {
+    public TrajectoryBuffer eulerPolycurver(String f,
+                                            String g,
+                                            InitialData initData,
+                                            int iterationsNum) {
+
+        TrajectoryBuffer result = new TrajectoryBuffer(iterationsNum+1, true);
+
+        double x = initData.getInitX();
+        double y = initData.getInitY();
+        double t = initData.getInitT();
+        double deltaT = initData.getDeltaT();
+
+        CompiledExpression eF = CompiledExpression.compile(f, "x", "y", "t");
+        CompiledExpression eG = CompiledExpression.compile(g, "x", "y", "t");
+        double[] state = new double[] {x, y, t};
+
+        result.add(x, y, t);
+
+        for (int i = 0; i < iterationsNum; i++) {
+
+            eulerStep(eF, eG, state, deltaT);
+            result.add(state[0], state[1], state[2]);
+        }
+
+        return result;
+    }
+
+    /**
+     *  Integrates (or iterates, if discrete) a system of any dimension,
+     *  see DynamicSystem. Only the projection of the trajectory
+     *  onto components plotX and plotY is stored.
+     *
+     * @param varNames state variables, e.g. {"x", "y", "z"}
+     * @param expressions right-hand sides (or map components) in the same order
+     * @param initData must carry the initial state of matching dimension
+     */
+    public TrajectoryBuffer systemBuilder(String[] varNames,
+                                          String[] expressions,
+                                          InitialData initData,
+                                          int iterationsNum,
+                                          int plotX,
+                                          int plotY,
+                                          boolean discrete) {
+
+        double[] state = initData.getInitState();
+
+        if (varNames.length != expressions.length || varNames.length != state.length) {
+
+            System.err.println("systemBuilder: " + varNames.length + " variables, " + expressions.length +
+                    " expressions and " + state.length + " initial values given");
+            return null;
+        }
+
+        if (plotX < 0 || plotX >= state.length || plotY < 0 || plotY >= state.length) {
+
+            System.err.println("systemBuilder: plotted components must be within 0.." + (state.length-1));
+            return null;
+        }
+
+        DynamicSystem system = new DynamicSystem(varNames, expressions);
+        TrajectoryBuffer result = new TrajectoryBuffer(iterationsNum+1, !discrete);
+        double t = initData.getInitT();
+        double deltaT = initData.getDeltaT();
+
+        result.add(state[plotX], state[plotY], t);
+
+        for (int i = 0; i < iterationsNum; i++) {
+
+            if (discrete) { system.mapStep(state); }
+
+            else {
+
+                system.rungeKuttaStep(state, t, deltaT);
+                t += deltaT;
+            }
+
+            result.add(state[plotX], state[plotY], t);
+        }
 
-        List<Pair<Double, Double>> result = new ArrayList<>();
+        return result;
+    }
 
-        Double x = initData.getInitX();
-        Double y = initData.getInitY();
-        Double t = initData.getInitT();
-        Double deltaT = initData.getDeltaT();
+    /**
+     *  Estimates the full Lyapunov spectrum along the orbit of the system,
+     *  see LyapunovEstimator. The spectrum is printed at the end.
+     *
+     * @return running estimate of the largest exponent:
+     *         x is time (iterations for maps), y is the estimate
+     */
+    public TrajectoryBuffer lyapunovBuilder(String[] varNames,
+                                            String[] expressions,
+                                            InitialData initData,
+                                            int iterationsNum,
+                                            boolean discrete) {
+
+        double[] state = initData.getInitState();
+
+        if (varNames.length != expressions.length || varNames.length != state.length) {
+
+            System.err.println("lyapunovBuilder: " + varNames.length + " variables, " + expressions.length +
+                    " expressions and " + state.length + " initial values given");
+            return null;
+        }
 
-        Argument xArg = new Argument("x", x);
-        Argument yArg = new Argument("y", y);
-        Argument tArg = new Argument("t", t);
+        DynamicSystem system = new DynamicSystem(varNames, expressions);
+        LyapunovEstimator estimator = new LyapunovEstimator(system, state.length, LYAPUNOV_RENORM_EVERY);
+        TrajectoryBuffer result = new TrajectoryBuffer(iterationsNum/LYAPUNOV_RENORM_EVERY + 1);
+        double t = initData.getInitT();
+        double deltaT = initData.getDeltaT();
 
-        Expression eF = new Expression(f, xArg, yArg, tArg);
-        Expression eG = new Expression(g, xArg, yArg, tArg);
+        for (int i = 1; i <= iterationsNum; i++) {
 
-        result.add(new Pair<Double, Double>(x, y));
+            if (discrete) { estimator.mapStep(state); }
 
-        for (Integer i = 0; i < iterationsNum; i++) {
+            else {
 
-            x = xArg.getArgumentValue() + eF.calculate() * deltaT;
-            y = yArg.getArgumentValue() + eG.calculate() * deltaT;
-            t = t + deltaT;
+                estimator.rungeKuttaStep(state, t, deltaT);
+                t += deltaT;
+            }
 
-            result.add(new Pair<Double, Double>(x, y));
-            xArg.setArgumentValue(x);
-            yArg.setArgumentValue(y);
-            tArg.setArgumentValue(t);
+            if (i % LYAPUNOV_RENORM_EVERY == 0) {
+                result.add(discrete ? i : t - initData.getInitT(), estimator.getLargestExponent());
+            }
         }
 
+        System.out.println("Lyapunov spectrum after " + iterationsNum + " steps: " +
+                Arrays.toString(estimator.getExponents()));
+
         return result;
     }
 
-    public List<Pair<Double, Double>> arbitraryMapper(String f,
-                                                      String g,
-                                                      InitialData initData,
-                                                      Integer iterationsNum) {
+    public TrajectoryBuffer lyapunovMapper(String f,
+                                           String g,
+                                           InitialData initData,
+                                           int iterationsNum) {
+
+        return lyapunovBuilder(new String[] {"x", "y"}, new String[] {f, g}, initData, iterationsNum, true);
+    }
+
+    public TrajectoryBuffer lyapunovRungeKutter(String f,
+                                                String g,
+                                                InitialData initData,
+                                                int iterationsNum) {
+
+        return lyapunovBuilder(new String[] {"x", "y"}, new String[] {f, g}, initData, iterationsNum, false);
+    }
+
+    /**
+     *  Streaming counterparts of rungeKutter, eulerPolycurver and arbitraryMapper:
+     *  points are published in chunks while being computed, see TrajectoryStream.
+     *
+     * @param iterationsNum number of steps, 0 or less for an endless run
+     */
+    public TrajectoryStream streamRungeKutter(String f,
+                                              String g,
+                                              InitialData initData,
+                                              long iterationsNum) {
+
+        CompiledExpression eF = CompiledExpression.compile(f, "x", "y", "t");
+        CompiledExpression eG = CompiledExpression.compile(g, "x", "y", "t");
+        double[] vars = new double[3];
+        double deltaT = initData.getDeltaT();
+
+        return new TrajectoryStream(new double[] {initData.getInitX(), initData.getInitY(), initData.getInitT()},
+                                    state -> rungeKuttaStep(eF, eG, vars, state, deltaT),
+                                    iterationsNum, STREAM_CHUNK_SIZE, STREAM_BUFFER_CHUNKS);
+    }
+
+    public TrajectoryStream streamEulerPolycurver(String f,
+                                                  String g,
+                                                  InitialData initData,
+                                                  long iterationsNum) {
+
+        CompiledExpression eF = CompiledExpression.compile(f, "x", "y", "t");
+        CompiledExpression eG = CompiledExpression.compile(g, "x", "y", "t");
+        double deltaT = initData.getDeltaT();
+
+        return new TrajectoryStream(new double[] {initData.getInitX(), initData.getInitY(), initData.getInitT()},
+                                    state -> eulerStep(eF, eG, state, deltaT),
+                                    iterationsNum, STREAM_CHUNK_SIZE, STREAM_BUFFER_CHUNKS);
+    }
+
+    public TrajectoryStream streamArbitraryMapper(String f,
+                                                  String g,
+                                                  InitialData initData,
+                                                  long iterationsNum) {
+
+        CompiledExpression eF = CompiledExpression.compile(f, "x", "y");
+        CompiledExpression eG = CompiledExpression.compile(g, "x", "y");
+
+        return new TrajectoryStream(new double[] {initData.getInitX(), initData.getInitY()},
+                                    state -> mapStep(eF, eG, state),
+                                    iterationsNum, STREAM_CHUNK_SIZE, STREAM_BUFFER_CHUNKS);
+    }
+
+    /**
+     *  Advances all members of the ensemble together with RK4 (or Euler)
+     *  steps of size deltaT, see Ensemble.
+     *
+     * @param snapshotEvery positions of the whole ensemble are recorded
+     *                      initially and after every snapshotEvery steps
+     */
+    public TrajectoryBuffer ensembleRungeKutter(String f,
+                                                String g,
+                                                Ensemble ensemble,
+                                                double deltaT,
+                                                int iterationsNum,
+                                                int snapshotEvery) {
+
+        return ensembleIntegrator(f, g, ensemble, deltaT, iterationsNum, snapshotEvery, true);
+    }
 
-        List<Pair<Double, Double>> result = new ArrayList<>();
+    public TrajectoryBuffer ensembleEulerPolycurver(String f,
+                                                    String g,
+                                                    Ensemble ensemble,
+                                                    double deltaT,
+                                                    int iterationsNum,
+                                                    int snapshotEvery) {
 
-        Double x = initData.getInitX();
-        Double y = initData.getInitY();
+        return ensembleIntegrator(f, g, ensemble, deltaT, iterationsNum, snapshotEvery, false);
+    }
 
-        Argument xArg = new Argument("x", x);
-        Argument yArg = new Argument("y", y);
+    private TrajectoryBuffer ensembleIntegrator(String f,
+                                                String g,
+                                                Ensemble ensemble,
+                                                double deltaT,
+                                                int iterationsNum,
+                                                int snapshotEvery,
+                                                boolean rungeKutta) {
+
+        if (snapshotEvery <= 0) {
+
+            System.err.println("ensembleIntegrator: snapshot interval must be 1+");
+            return null;
+        }
 
-        Expression eF = new Expression(f, xArg, yArg);
-        Expression eG = new Expression(g, xArg, yArg);
+        CompiledExpression eF = CompiledExpression.compile(f, "x", "y", "t");
+        CompiledExpression eG = CompiledExpression.compile(g, "x", "y", "t");
+        TrajectoryBuffer result = new TrajectoryBuffer((iterationsNum/snapshotEvery + 1)*ensemble.size(), true);
 
-        result.add(new Pair<Double, Double>(x, y));
+        ensemble.snapshot(result);
 
-        for (Integer i = 0; i < iterationsNum; i++) {
+        for (int i = 1; i <= iterationsNum; i++) {
 
-            x = eF.calculate();
-            y = eG.calculate();
+            if (rungeKutta) { ensemble.rungeKuttaStep(eF, eG, deltaT); }
+            else { ensemble.eulerStep(eF, eG, deltaT); }
 
-            result.add(new Pair<Double, Double>(x, y));
-            xArg.setArgumentValue(x);
-            yArg.setArgumentValue(y);
+            if (i % snapshotEvery == 0) { ensemble.snapshot(result); }
         }
 
         return result;
     }
 
+    public TrajectoryBuffer arbitraryMapper(String f,
+                                            String g,
+                                            InitialData initData,
+                                            int iterationsNum) {
+
+        TrajectoryBuffer result = new TrajectoryBuffer(iterationsNum+1);
+
+        double x = initData.getInitX();
+        double y = initData.getInitY();
+
+        CompiledExpression eF = CompiledExpression.compile(f, "x", "y");
+        CompiledExpression eG = CompiledExpression.compile(g, "x", "y");
+        double[] state = new double[] {x, y};
+
+        result.add(x, y);
+
+        for (int i = 0; i < iterationsNum; i++) {
+
+            mapStep(eF, eG, state);
+            result.add(state[0], state[1]);
+        }
+
+        return result;
+    }
+
+    /**
+     *  Iterates every point of the cellsX x cellsY grid over the given area
+     *  with arbitraryMapper semantics, see BasinGrid for the meaning of values.
+     */
+    public BasinGrid basinBuilder(String f,
+                                  String g,
+                                  double startX, double startY,
+                                  double finishX, double finishY,
+                                  int cellsX, int cellsY,
+                                  int maxIter,
+                                  double escapeRadius,
+                                  BasinGrid.Mode mode) {
+
+        if (cellsX <= 0 || cellsY <= 0 || maxIter < 0) {
+
+            System.err.println("basinBuilder: grid size must be 1+ and iterations number 0+");
+            return null;
+        }
+
+        CompiledExpression eF = CompiledExpression.compile(f, "x", "y");
+        CompiledExpression eG = CompiledExpression.compile(g, "x", "y");
+        BasinGrid grid = new BasinGrid(startX, startY, finishX, finishY,
+                                       cellsX, cellsY, maxIter, escapeRadius, mode);
+
+        grid.compute(eF, eG);
+
+        if (mode == BasinGrid.Mode.ATTRACTOR) {
+            System.out.println("basinBuilder: " + grid.getAttractors().size() + " periodic attractors found");
+        }
+
+        return grid;
+    }
+
     public Pair<List<Pair<Double, Double>>, List<Short>> crBuilderTopSort(String f,
                                                                          String g,
                                                                          CellularArea initArea,
@@ -159,30 +621,31 @@ public class Logic {
             return null;
         }
 
-        Expression eF = new Expression(f);
-        Expression eG = new Expression(g);
-        Argument xArg = new Argument("x", 0.0);
-        Argument yArg = new Argument("y", 0.0);
-
-        eF.addArguments(xArg, yArg);
-        eG.addArguments(xArg, yArg);
+        CompiledExpression eF = CompiledExpression.compile(f, "x", "y");
+        CompiledExpression eG = CompiledExpression.compile(g, "x", "y");
 
         ComponentGraph cgInit = new ComponentGraph();
 
         initArea.doInitialFragmentation(cgInit);
         initArea.fillSymbolicImage(cgInit, eF, eG);
-        cgInit.tarjan();
+        cgInit.findSccs();
         initArea.markupEntireArea(cgInit);
 
         cgInit.printContent();
 
+        // links of the previous level restrict those of the next one
+        ComponentGraph previous = cgInit;
+
         for (Integer i = 0; i < fragDepth; i++) {
 
             ComponentGraph cg = new ComponentGraph();
 
+            // discarded cells of the previous level are not needed any more
+            initArea.compact();
             initArea.doRegularFragmentation(cg);
-            initArea.fillSymbolicImage(cg, eF, eG);
-            cg.tarjan();
+            initArea.fillSymbolicImage(cg, eF, eG, previous);
+            previous = cg;
+            cg.findSccs();
             initArea.markupEntireArea(cg);
 
             cg.printContent();
@@ -198,12 +661,13 @@ public class Logic {
                 ComponentGraph subGraph = cg.createConcentratedGraph();
                 System.out.println("Concentrated: ");
                 subGraph.printContent();
-                List<ComponentGraph.Node> sortedReversed = subGraph.sortNodes();
+                // positions in the concentrated graph are cluster ids
+                int[] order = subGraph.topologicalOrder();
                 List<Integer> orderList = new ArrayList<>();
 
-                for (ComponentGraph.Node node : sortedReversed) {
-                    if (node.id < cg.getSccNumber())
-                        orderList.add(0, node.id);
+                for (int id : order) {
+                    if (id < cg.getSccNumber())
+                        orderList.add(id);
                 }
 
                 System.out.println("Order of SCC: ");
@@ -227,35 +691,36 @@ public class Logic {
             return null;
         }
 
-        Expression eF = new Expression(f);
-        Expression eG = new Expression(g);
-        Argument xArg = new Argument("x", 0.0);
-        Argument yArg = new Argument("y", 0.0);
-
-        eF.addArguments(xArg, yArg);
-        eG.addArguments(xArg, yArg);
+        CompiledExpression eF = CompiledExpression.compile(f, "x", "y");
+        CompiledExpression eG = CompiledExpression.compile(g, "x", "y");
 
         ComponentGraph cgInit = new ComponentGraph();
 
         initArea.doInitialFragmentation(cgInit);
         initArea.fillSymbolicImage(cgInit, eF, eG);
-        initArea.markAsDiscarded(cgInit.tarjan());
+        initArea.markAsDiscarded(cgInit.findSccs());
 
         cgInit.printContent();
 
+        // links of the previous level restrict those of the next one
+        ComponentGraph previous = cgInit;
+
         for (Integer i = 0; i < fragDepth; i++) {
 
             ComponentGraph cg = new ComponentGraph();
 
+            // discarded cells of the previous level are not needed any more
+            initArea.compact();
             initArea.doRegularFragmentation(cg);
-            initArea.fillSymbolicImage(cg, eF, eG);
-            initArea.markAsDiscarded(cg.tarjan());
+            initArea.fillSymbolicImage(cg, eF, eG, previous);
+            previous = cg;
+            initArea.markAsDiscarded(cg.findSccs());
 
             cg.printContent();
 
             if (i == fragDepth-1 && xmcDetection) {
 
-                cg.fillJacobianWeights(initArea);
+                cg.fillJacobianWeights(initArea, eF, eG);
                 cg.printXmcGraph();
             }
         }
@@ -275,32 +740,33 @@ public class Logic {
             return null;
         }
 
-        Expression eF = new Expression(f);
-        Expression eG = new Expression(g);
-        Argument xArg = new Argument("x", 0.0);
-        Argument yArg = new Argument("y", 0.0);
-
-        eF.addArguments(xArg, yArg);
-        eG.addArguments(xArg, yArg);
+        CompiledExpression eF = CompiledExpression.compile(f, "x", "y");
+        CompiledExpression eG = CompiledExpression.compile(g, "x", "y");
 
         ComponentGraph cgInit = new ComponentGraph();
 
         initArea.doInitialFragmentation(cgInit);
         initArea.fillSymbolicImage(cgInit, eF, eG);
-        initArea.markAsDiscarded(cgInit.tarjan());
+        initArea.markAsDiscarded(cgInit.findSccs());
 
         double cellW = initArea.getCellWidth();
         double cellH = initArea.getCellHeight();
 
         cgInit.printContent();
 
+        // links of the previous level restrict those of the next one
+        ComponentGraph previous = cgInit;
+
         for (Integer i = 0; i < fragDepth; i++) {
 
             ComponentGraph cg = new ComponentGraph();
 
+            // discarded cells of the previous level are not needed any more
+            initArea.compact();
             initArea.doRegularFragmentation(cg);
-            initArea.fillSymbolicImage(cg, eF, eG);
-            initArea.markAsDiscarded(cg.tarjan());
+            initArea.fillSymbolicImage(cg, eF, eG, previous);
+            previous = cg;
+            initArea.markAsDiscarded(cg.findSccs());
 
             cellW /= 2;
             cellH /= 2;
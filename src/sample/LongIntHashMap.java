@@ -0,0 +1,138 @@
+package sample;
+
+import java.util.Arrays;
+
+/**
+ *  Map from long keys to int values with open addressing
+ *  and linear probing over two flat arrays, so that lookups
+ *  neither box keys nor follow references.
+ *
+ *  Long.MIN_VALUE marks free slots and cannot be used as a key.
+ *  Not thread-safe for writes; concurrent reads are fine.
+ */
+public class LongIntHashMap {
+
+    private static final long FREE = Long.MIN_VALUE;
+
+    private final int missingValue;
+    private long[] keys;
+    private int[] values;
+    private int mask;
+    private int size = 0;
+
+
+    /**
+     * @param expectedSize number of keys that fit without rehashing
+     * @param missingValue returned by get() for absent keys
+     */
+    public LongIntHashMap(int expectedSize, int missingValue) {
+
+        this.missingValue = missingValue;
+
+        // at most half full
+        int capacity = Integer.highestOneBit(Math.max(4, expectedSize) * 2 - 1) << 1;
+        allocate(capacity);
+    }
+
+    public LongIntHashMap() { this(16, -1); }
+
+    private void allocate(int capacity) {
+
+        keys = new long[capacity];
+        values = new int[capacity];
+        mask = capacity - 1;
+        Arrays.fill(keys, FREE);
+    }
+
+    // finalizer of MurmurHash3, spreads sequential keys over the table
+    private static int hash(long key) {
+
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+
+        return (int) key;
+    }
+
+    public int size() { return size; }
+
+    public boolean isEmpty() { return size == 0; }
+
+    public int get(long key) {
+
+        for (int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+
+            long k = keys[slot];
+
+            if (k == key) { return values[slot]; }
+            if (k == FREE) { return missingValue; }
+        }
+    }
+
+    public boolean containsKey(long key) {
+
+        for (int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+
+            long k = keys[slot];
+
+            if (k == key) { return true; }
+            if (k == FREE) { return false; }
+        }
+    }
+
+    // returns previous value or missingValue
+    public int put(long key, int value) {
+
+        if (key == FREE) {
+            throw new IllegalArgumentException("LongIntHashMap: Long.MIN_VALUE is reserved");
+        }
+
+        for (int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+
+            long k = keys[slot];
+
+            if (k == key) {
+
+                int previous = values[slot];
+                values[slot] = value;
+                return previous;
+            }
+
+            if (k == FREE) {
+
+                keys[slot] = key;
+                values[slot] = value;
+
+                if (++size * 2 > keys.length) { rehash(keys.length << 1); }
+                return missingValue;
+            }
+        }
+    }
+
+    public void clear() {
+
+        Arrays.fill(keys, FREE);
+        size = 0;
+    }
+
+    private void rehash(int capacity) {
+
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+
+        allocate(capacity);
+
+        for (int i = 0; i < oldKeys.length; i++) {
+
+            if (oldKeys[i] == FREE) { continue; }
+
+            int slot = hash(oldKeys[i]) & mask;
+            while (keys[slot] != FREE) { slot = (slot + 1) & mask; }
+
+            keys[slot] = oldKeys[i];
+            values[slot] = oldValues[i];
+        }
+    }
+}
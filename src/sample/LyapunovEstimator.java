@@ -0,0 +1,182 @@
+package sample;
+
+/**
+ *  Streaming estimate of Lyapunov exponents of a DynamicSystem.
+ *  A set of tangent vectors is advanced together with the orbit
+ *  (by the Jacobian for maps, by the variational equation for ODEs)
+ *  and every renormEvery steps orthonormalized with modified
+ *  Gram-Schmidt; logarithms of the stretching factors, divided by
+ *  elapsed time (number of iterations for maps), converge to
+ *  the largest exponents in decreasing order.
+ *
+ *  The estimator advances the state itself, so use its step methods
+ *  instead of the ones of DynamicSystem.
+ */
+public class LyapunovEstimator {
+
+    private final DynamicSystem system;
+    private final int dim;
+    private final int exponents;
+    private final int renormEvery;
+
+    // vector j occupies tangents[j*dim .. j*dim+dim-1]
+    private final double[] tangents;
+    private final double[] logSums;
+    private double elapsed = 0, renormElapsed = 0;
+    private long steps = 0;
+
+    // workspace
+    private final double[] jac;
+    private final double[] k1, k2, k3, k4, stageState;
+    private final double[] tk1, tk2, tk3, tk4, stageTangents;
+
+
+    /**
+     * @param exponents how many leading exponents to track, 1..dimension
+     * @param renormEvery steps between orthonormalizations
+     */
+    public LyapunovEstimator(DynamicSystem system, int exponents, int renormEvery) {
+
+        this.system = system;
+        this.dim = system.getDimension();
+
+        if (exponents < 1 || exponents > dim || renormEvery < 1) {
+            throw new IllegalArgumentException("LyapunovEstimator: bad number of exponents or renormalization interval");
+        }
+
+        this.exponents = exponents;
+        this.renormEvery = renormEvery;
+        this.tangents = new double[exponents*dim];
+        this.logSums = new double[exponents];
+
+        // starting from the first basis vectors
+        for (int j = 0; j < exponents; j++) { tangents[j*dim + j] = 1.0; }
+
+        this.jac = new double[dim*dim];
+        this.k1 = new double[dim];
+        this.k2 = new double[dim];
+        this.k3 = new double[dim];
+        this.k4 = new double[dim];
+        this.stageState = new double[dim];
+        this.tk1 = new double[exponents*dim];
+        this.tk2 = new double[exponents*dim];
+        this.tk3 = new double[exponents*dim];
+        this.tk4 = new double[exponents*dim];
+        this.stageTangents = new double[exponents*dim];
+    }
+
+    public long getSteps() { return steps; }
+
+    // running estimates, in decreasing order
+    public double[] getExponents() {
+
+        double[] result = new double[exponents];
+
+        if (renormElapsed == 0) { return result; }
+
+        for (int j = 0; j < exponents; j++) { result[j] = logSums[j] / renormElapsed; }
+        return result;
+    }
+
+    public double getLargestExponent() {
+        return renormElapsed == 0 ? 0.0 : logSums[0] / renormElapsed;
+    }
+
+    // out_j = jac * v_j for every tangent vector
+    private void applyJacobian(double[] vectors, double[] out) {
+
+        for (int j = 0; j < exponents; j++) {
+
+            int base = j*dim;
+
+            for (int i = 0; i < dim; i++) {
+
+                double sum = 0.0;
+                for (int k = 0; k < dim; k++) { sum += jac[i*dim + k] * vectors[base + k]; }
+                out[base + i] = sum;
+            }
+        }
+    }
+
+    public void mapStep(double[] state) {
+
+        system.evaluateWithJacobian(state, 0.0, k1, jac);
+        applyJacobian(tangents, tk1);
+
+        System.arraycopy(k1, 0, state, 0, dim);
+        System.arraycopy(tk1, 0, tangents, 0, tangents.length);
+
+        finishStep(1.0);
+    }
+
+    // RK4 over the orbit together with its variational equation dv/dt = J(x, t) v
+    public void rungeKuttaStep(double[] state, double t, double deltaT) {
+
+        int n = tangents.length;
+
+        system.evaluateWithJacobian(state, t, k1, jac);
+        applyJacobian(tangents, tk1);
+
+        for (int i = 0; i < dim; i++) { stageState[i] = state[i] + deltaT*k1[i]/2; }
+        for (int i = 0; i < n; i++) { stageTangents[i] = tangents[i] + deltaT*tk1[i]/2; }
+
+        system.evaluateWithJacobian(stageState, t + deltaT/2, k2, jac);
+        applyJacobian(stageTangents, tk2);
+
+        for (int i = 0; i < dim; i++) { stageState[i] = state[i] + deltaT*k2[i]/2; }
+        for (int i = 0; i < n; i++) { stageTangents[i] = tangents[i] + deltaT*tk2[i]/2; }
+
+        system.evaluateWithJacobian(stageState, t + deltaT/2, k3, jac);
+        applyJacobian(stageTangents, tk3);
+
+        for (int i = 0; i < dim; i++) { stageState[i] = state[i] + deltaT*k3[i]; }
+        for (int i = 0; i < n; i++) { stageTangents[i] = tangents[i] + deltaT*tk3[i]; }
+
+        system.evaluateWithJacobian(stageState, t + deltaT, k4, jac);
+        applyJacobian(stageTangents, tk4);
+
+        for (int i = 0; i < dim; i++) {
+            state[i] += deltaT*(k1[i] + 2.0*k2[i] + 2.0*k3[i] + k4[i])/6.0;
+        }
+
+        for (int i = 0; i < n; i++) {
+            tangents[i] += deltaT*(tk1[i] + 2.0*tk2[i] + 2.0*tk3[i] + tk4[i])/6.0;
+        }
+
+        finishStep(Math.abs(deltaT));
+    }
+
+    private void finishStep(double duration) {
+
+        steps++;
+        elapsed += duration;
+
+        if (steps % renormEvery == 0) { renormalize(); }
+    }
+
+    private void renormalize() {
+
+        for (int j = 0; j < exponents; j++) {
+
+            int base = j*dim;
+
+            for (int i = 0; i < j; i++) {
+
+                int other = i*dim;
+                double dot = 0.0;
+
+                for (int k = 0; k < dim; k++) { dot += tangents[other + k] * tangents[base + k]; }
+                for (int k = 0; k < dim; k++) { tangents[base + k] -= dot * tangents[other + k]; }
+            }
+
+            double norm = 0.0;
+            for (int k = 0; k < dim; k++) { norm += tangents[base + k] * tangents[base + k]; }
+            norm = Math.sqrt(norm);
+
+            logSums[j] += Math.log(norm);
+            for (int k = 0; k < dim; k++) { tangents[base + k] /= norm; }
+        }
+
+        renormElapsed = elapsed;
+    }
+}
@@ -0,0 +1,79 @@
+package sample;
+
+import java.util.Arrays;
+
+/**
+ *  Trajectory stored column-wise in growable primitive arrays:
+ *  x and y always, t only for time-driven systems.
+ *  Adding a point never allocates unless the capacity is exceeded.
+ */
+public class TrajectoryBuffer {
+
+    private double[] xs;
+    private double[] ys;
+    private double[] ts;
+    private int size = 0;
+
+
+    public TrajectoryBuffer(int capacity, boolean withTime) {
+
+        capacity = Math.max(capacity, 16);
+
+        this.xs = new double[capacity];
+        this.ys = new double[capacity];
+        this.ts = withTime ? new double[capacity] : null;
+    }
+
+    public TrajectoryBuffer(int capacity) {
+        this(capacity, false);
+    }
+
+    public void add(double x, double y) {
+
+        if (size == xs.length) { grow(size+1); }
+
+        xs[size] = x;
+        ys[size] = y;
+        size++;
+    }
+
+    // for buffers created without time column t is silently dropped
+    public void add(double x, double y, double t) {
+
+        if (size == xs.length) { grow(size+1); }
+
+        xs[size] = x;
+        ys[size] = y;
+        if (ts != null) { ts[size] = t; }
+        size++;
+    }
+
+    public int size() { return size; }
+
+    public boolean isEmpty() { return size == 0; }
+
+    public boolean hasTime() { return ts != null; }
+
+    public double getX(int i) { return xs[i]; }
+
+    public double getY(int i) { return ys[i]; }
+
+    // check hasTime() first, buffers created without time column have no t
+    public double getT(int i) {
+
+        if (ts == null) { throw new IllegalStateException("TrajectoryBuffer.getT: buffer has no time column"); }
+
+        return ts[i];
+    }
+
+    private void grow(int minCapacity) {
+
+        // 1.5 growth like ArrayList, capped by max array length
+        long newCapacity = Math.max((long) xs.length + (xs.length >> 1), minCapacity);
+        int capacity = (int) Math.min(newCapacity, Integer.MAX_VALUE - 8);
+
+        xs = Arrays.copyOf(xs, capacity);
+        ys = Arrays.copyOf(ys, capacity);
+        if (ts != null) { ts = Arrays.copyOf(ts, capacity); }
+    }
+}
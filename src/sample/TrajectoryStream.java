@@ -0,0 +1,116 @@
+package sample;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *  Publishes a trajectory in chunks of chunkSize points
+ *  while it is being computed on a background thread.
+ *
+ *  Backpressure: at most bufferChunks chunks may wait for
+ *  the subscriber, after that the producer parks until the
+ *  subscriber requests more, so memory stays bounded
+ *  however long the run is. The run ends after iterationsNum
+ *  steps (never, if iterationsNum is 0 or less) or on stop().
+ *
+ *  Meant for a single subscriber: subscribe first, then start().
+ */
+public class TrajectoryStream extends SubmissionPublisher<TrajectoryBuffer> {
+
+    // advances the state in place by one step
+    public interface Stepper {
+        void step(double[] state);
+    }
+
+    private final double[] state;
+    private final boolean withTime;
+    private final Stepper stepper;
+    private final long iterationsNum;
+    private final int chunkSize;
+
+    private volatile boolean stopped = false;
+
+
+    /**
+     * @param initState {x, y} or {x, y, t}, is copied
+     */
+    public TrajectoryStream(double[] initState, Stepper stepper,
+                            long iterationsNum, int chunkSize, int bufferChunks) {
+
+        super(ForkJoinPool.commonPool(), bufferChunks);
+
+        this.state = initState.clone();
+        this.withTime = initState.length > 2;
+        this.stepper = stepper;
+        this.iterationsNum = iterationsNum;
+        this.chunkSize = chunkSize;
+    }
+
+    public void start() {
+
+        Thread producer = new Thread(this::produce, "TrajectoryStream");
+
+        producer.setDaemon(true);
+        producer.start();
+    }
+
+    public void stop() { stopped = true; }
+
+    public boolean isStopped() { return stopped; }
+
+    private void produce() {
+
+        TrajectoryBuffer chunk = new TrajectoryBuffer(chunkSize, withTime);
+        long i = 0;
+
+        try {
+
+            addState(chunk);
+
+            while (!stopped && (iterationsNum <= 0 || i < iterationsNum)) {
+
+                stepper.step(state);
+                addState(chunk);
+                i++;
+
+                if (chunk.size() == chunkSize) {
+
+                    publish(chunk);
+                    chunk = new TrajectoryBuffer(chunkSize, withTime);
+                }
+            }
+
+            if (!chunk.isEmpty()) { publish(chunk); }
+
+            close();
+        }
+
+        catch (RuntimeException e) {
+            closeExceptionally(e);
+        }
+    }
+
+    private void addState(TrajectoryBuffer chunk) {
+
+        if (withTime) { chunk.add(state[0], state[1], state[2]); }
+        else { chunk.add(state[0], state[1]); }
+    }
+
+    // waits for free space in subscriber buffer, but keeps an eye on stop()
+    private void publish(TrajectoryBuffer chunk) {
+
+        while (!stopped) {
+
+            // nobody listens anymore, e.g. subscription was cancelled
+            if (getNumberOfSubscribers() == 0) {
+
+                stopped = true;
+                return;
+            }
+
+            // negative lag means the chunk was dropped because of full buffer
+            if (offer(chunk, 100, TimeUnit.MILLISECONDS, null) >= 0) { return; }
+        }
+    }
+}